@@ -0,0 +1,91 @@
+// alias table of Walker, built with the method of Vose, used to sample an index
+// with probability proportional to its weight in O(1) after O(n) set up
+class AliasTable {
+
+  // the number of weights
+  private int n;
+
+  // index i is kept with probability prob[i], otherwise alias[i] is returned
+  private double[] prob;
+  private int[] alias;
+
+  // work lists of the indices with less and more than the average weight
+  private int[] small;
+  private int[] large;
+
+  AliasTable(int n) {
+    this.prob = new double[n];
+    this.alias = new int[n];
+    this.small = new int[n];
+    this.large = new int[n];
+  }
+
+  // replaces the weights by the first n of weights in O(n), growing if needed
+  public void build(float[] weights, int n) {
+
+    if (prob.length < n) {
+      prob = new double[n];
+      alias = new int[n];
+      small = new int[n];
+      large = new int[n];
+    }
+
+    this.n = n;
+
+    double total = 0;
+
+    for (int i = 0; i < n; i++) {
+      total += weights[i];
+    }
+
+    // scale the weights so that they average 1
+    int smalls = 0;
+    int larges = 0;
+
+    for (int i = 0; i < n; i++) {
+
+      prob[i] = (total > 0) ? weights[i]*n/total : 1;
+      alias[i] = i;
+
+      if (prob[i] < 1) {
+        small[smalls++] = i;
+      }
+      else {
+        large[larges++] = i;
+      }
+    }
+
+    // fill up each small index with the excess of a large one
+    while (smalls > 0 && larges > 0) {
+
+      int s = small[--smalls];
+      int l = large[larges - 1];
+
+      alias[s] = l;
+      prob[l] -= 1 - prob[s];
+
+      if (prob[l] < 1) {
+        larges--;
+        small[smalls++] = l;
+      }
+    }
+
+    // whatever is left is 1 up to rounding
+    while (larges > 0) {
+      prob[large[--larges]] = 1;
+    }
+
+    while (smalls > 0) {
+      prob[small[--smalls]] = 1;
+    }
+  }
+
+  // returns an index sampled proportionally to its weight, given u uniform in [0, 1)
+  public int sample(double u) {
+
+    double x = u*n;
+    int i = Math.min((int)x, n - 1);
+
+    return (x - i < prob[i]) ? i : alias[i];
+  }
+}
@@ -9,6 +9,33 @@ implementation of (static) coreset construction by Braverman et al. 2016
 
 public class CoresetBFL {
 
+  // ways of computing the (alpha, beta)-approximation the sampling is based on,
+  // from the cheapest to the most accurate
+  public enum Approximation {
+
+    // D^2 seeding only, without any Lloyd iterations
+    SEEDING,
+
+    // D^2 seeding followed by a single Lloyd iteration
+    SINGLE_LLOYD,
+
+    // mini-batch k-means on weighted samples of the input, followed by a single
+    // assignment of every point
+    SAMPLED,
+
+    // D^2 seeding followed by two Lloyd iterations
+    FULL
+  }
+
+  // number of mini-batches and points per batch (times k) used by SAMPLED
+  private static final int SAMPLED_BATCHES = 2;
+  private static final int SAMPLED_BATCH_FACTOR = 10;
+
+  // in parallel mode each task handles about m/PARALLEL_SPLIT points, or
+  // samples, but never fewer than MIN_GRAIN
+  private static final int PARALLEL_SPLIT = 8;
+  private static final int MIN_GRAIN = 64;
+
   // parameter for k clustering
   private int k;
 
@@ -27,35 +54,98 @@ public class CoresetBFL {
   private float alpha;
   private float beta;
 
-  // store the (alpha, beta)-approximation
-  private int[][] clusters;
+  // store the (alpha, beta)-approximation, the points of cluster i are
+  // clusterMembers[clusterOffsets[i]] to clusterMembers[clusterOffsets[i + 1] - 1]
+  private int[] clusterOffsets;
+  private int[] clusterMembers;
   private int[] clusterCenters;
 
+  // whether the costs, probabilities and samples are computed on the fork join pool
+  private boolean parallel;
+
+  // points, or samples, handled by each task in parallel mode
+  private int grain;
+
+  // random number generator used for sampling, the approximation and parallel
+  // chunks get streams split from it
+  private SplittableRandom rng;
+
+  // alias table used to sample the coreset, kept between calls
+  private AliasTable aliasTable;
+
+  // position of each sampled key in the coreset, kept between calls
+  private IntIntMap positions;
+
   // the input points we compute a coreset on
   private float[][] points;
   private float[] weights;
   private int[] keys;
 
-  // the coreset we compute
+  // the coreset we compute, held in the first outSize entries of buffers that
+  // are kept between calls
   private float[][] outPoints;
   private float[] outWeights;
   private int[] outKeys;
 
+  private int outSize;
+
   public CoresetBFL(int k, Metric metric, int m) {
+    this(k, metric, m, KMeansPlusPlus.Seeding.KMEANS_PLUS_PLUS, Approximation.FULL);
+  }
+
+  public CoresetBFL(int k, Metric metric, int m, KMeansPlusPlus.Seeding seeding) {
+    this(k, metric, m, seeding, Approximation.FULL);
+  }
+
+  public CoresetBFL(int k, Metric metric, int m, Approximation approximation) {
+    this(k, metric, m, KMeansPlusPlus.Seeding.KMEANS_PLUS_PLUS, approximation);
+  }
+
+  public CoresetBFL(int k, Metric metric, int m, KMeansPlusPlus.Seeding seeding, Approximation approximation) {
+    this(k, metric, m, seeding, approximation, false);
+  }
+
+  public CoresetBFL(int k, Metric metric, int m, KMeansPlusPlus.Seeding seeding, Approximation approximation, boolean parallel) {
+    this(k, metric, m, seeding, approximation, parallel, new SplittableRandom());
+  }
+
+  public CoresetBFL(int k, Metric metric, int m, Approximation approximation, SplittableRandom rng) {
+    this(k, metric, m, KMeansPlusPlus.Seeding.KMEANS_PLUS_PLUS, approximation, false, rng);
+  }
+
+  // the seeding is not used by SAMPLED, which seeds on its first batch
+  public CoresetBFL(int k, Metric metric, int m, KMeansPlusPlus.Seeding seeding, Approximation approximation, boolean parallel, SplittableRandom rng) {
     this.k = k;
     this.metric = metric;
+    this.parallel = parallel;
+    this.grain = Math.max(MIN_GRAIN, m/PARALLEL_SPLIT);
+    this.rng = rng;
 
     this.rho = 1;
 
     this.m = m;
 
-    this.kmeanspp = new KMeansPlusPlus(k, metric);
+    this.kmeanspp = approximation(k, metric, seeding, approximation, rng.split());
 
     //this.alpha = 8*((float)Math.log(k) + 2);
     this.alpha = (float)Math.log(k);
     this.beta = 1;
   }
 
+  // the kmeans++ instance computing the given approximation
+  private static KMeansPlusPlus approximation(int k, Metric metric, KMeansPlusPlus.Seeding seeding, Approximation approximation, SplittableRandom rng) {
+    switch (approximation) {
+      case SEEDING:
+        return new KMeansPlusPlus(k, metric, 0, seeding, rng);
+      case SINGLE_LLOYD:
+        return new KMeansPlusPlus(k, metric, 1, seeding, rng);
+      case SAMPLED:
+        return KMeansPlusPlus.withMiniBatches(k, metric, SAMPLED_BATCHES, SAMPLED_BATCH_FACTOR*k, rng);
+      default:
+        return new KMeansPlusPlus(k, metric, 2, seeding, rng);
+    }
+  }
+
   // returns an epsilon-coreset given a weighted set (P, w) of a rho-metric space
   // and an (alpha, beta)-approximation P --> B
   public void construct(float[][] points, float[] weights, int[] keys, float lambda, float epsilon) {
@@ -79,9 +169,11 @@ public class CoresetBFL {
 
     // if there aren't enough points
     if (n < m) {
-      outPoints = points;
-      outWeights = weights;
-      outKeys = keys;
+      reserve(n);
+      System.arraycopy(points, 0, outPoints, 0, n);
+      System.arraycopy(weights, 0, outWeights, 0, n);
+      System.arraycopy(keys, 0, outKeys, 0, n);
+      outSize = n;
       return;
     }
 
@@ -97,81 +189,197 @@ public class CoresetBFL {
 
     int n = this.points.length;
 
+    // the approximation is done, so the scratch of the calling thread is free
+    KMeansWorkspace workspace = KMeansWorkspace.get();
+
     // arrays of total weight per cluster
-    float[] clusterWeights = new float[k];
+    float[] clusterWeights = workspace.clusterWeights(k);
+
+    // distance from each point to its center, in the order of clusterMembers
+    float[] dist = workspace.coresetDist(n);
 
     // total cost the approximation
     float v = 0;
 
+    // the sampling probabilities, in the order of clusterMembers
+    float[] prob = workspace.prob(n);
+
+    if (parallel) {
+      v = parallelCosts(dist, clusterWeights);
+      parallelProbabilities(prob, dist, clusterWeights, v, n);
+      samplePoints(m, prob, n, workspace.drawn(m));
+      return;
+    }
+
     for (int i = 0; i < k; i++) {
       clusterWeights[i] = 0;
-      for (int j = 0; j < clusters[i].length; j++) {
-        clusterWeights[i] += weights[clusters[i][j]];
-        v += weights[clusters[i][j]]*metric.d(points[clusters[i][j]], points[clusterCenters[i]]);
+      for (int l = clusterOffsets[i]; l < clusterOffsets[i + 1]; l++) {
+        int p = clusterMembers[l];
+        dist[l] = metric.d(points[p], points[clusterCenters[i]]);
+        clusterWeights[i] += weights[p];
+        v += weights[p]*dist[l];
       }
     }
 
-    // the arrays of sampling probabilities
-    float[][] prob = new float[k][];
-
     for (int i = 0; i < k; i++) {
-      prob[i] = new float[clusters[i].length];
-      for (int j = 0; j < prob[i].length; j++) {
-        prob[i][j] = 0.5f*weights[clusters[i][j]]*metric.d(points[clusters[i][j]], points[clusterCenters[i]])/v;
-        prob[i][j] += 0.5f*weights[clusters[i][j]]/(k*clusterWeights[i]);
+      for (int l = clusterOffsets[i]; l < clusterOffsets[i + 1]; l++) {
+        int p = clusterMembers[l];
+        prob[l] = 0.5f*weights[p]*dist[l]/v;
+        prob[l] += 0.5f*weights[p]/(k*clusterWeights[i]);
       }
     }
 
-    samplePoints(m, prob);
+    samplePoints(m, prob, n, workspace.drawn(m));
+  }
+
+  // the cluster that position l of clusterMembers belongs to, searching from cluster i
+  private int clusterAt(int l, int i) {
+    while (clusterOffsets[i + 1] <= l) {
+      i++;
+    }
+    return i;
   }
 
-  public void samplePoints(int m, float[][] prob) {
+  // computes the distances to the centers and the weight of each cluster in
+  // chunks of clusterMembers, and returns the total cost
+  private float parallelCosts(float[] dist, float[] clusterWeights) {
 
-    ArrayList<float[]> tempOutPoints = new ArrayList<float[]>();
-    ArrayList<Float> tempOutWeights = new ArrayList<Float>();
-     ArrayList<Integer> tempOutKeys = new ArrayList<Integer>();
+    int n = this.points.length;
+    int chunks = ParallelRange.chunks(n, grain);
 
-    Random rng = new Random();
+    double[] chunkCosts = new double[chunks];
+    float[][] chunkWeights = new float[chunks][k];
 
-    // sample m points and place them into the corset output
-    for (int l = 0; l < m; l++) {
+    ParallelRange.run(n, grain, (chunk, s, t) -> {
+
+      float[] w = chunkWeights[chunk];
+      double cost = 0;
+      int i = 0;
 
-      float r = rng.nextFloat();
-      float t = 0;
+      for (int l = s; l < t; l++) {
+        i = clusterAt(l, i);
+        int p = clusterMembers[l];
+        dist[l] = metric.d(points[p], points[clusterCenters[i]]);
+        w[i] += weights[p];
+        cost += weights[p]*dist[l];
+      }
+
+      chunkCosts[chunk] = cost;
+    });
+
+    double v = 0;
 
-      // sample a point
+    for (int c = 0; c < chunks; c++) {
+      v += chunkCosts[c];
       for (int i = 0; i < k; i++) {
+        clusterWeights[i] += chunkWeights[c][i];
+      }
+    }
+
+    return (float)v;
+  }
+
+  // computes the sampling probabilities in chunks of clusterMembers
+  private void parallelProbabilities(float[] prob, float[] dist, float[] clusterWeights, float v, int n) {
+
+    ParallelRange.run(n, grain, (chunk, s, t) -> {
+
+      int i = 0;
+
+      for (int l = s; l < t; l++) {
+        i = clusterAt(l, i);
+        int p = clusterMembers[l];
+        prob[l] = 0.5f*weights[p]*dist[l]/v;
+        prob[l] += 0.5f*weights[p]/(k*clusterWeights[i]);
+      }
+    });
+  }
+
+  // samples m points, point clusterMembers[l] with probability prob[l]
+  public void samplePoints(int m, float[] prob) {
+    samplePoints(m, prob, prob.length, new int[m]);
+  }
+
+  // as above for the first n probabilities, drawing into drawn
+  private void samplePoints(int m, float[] prob, int n, int[] drawn) {
+
+    // build the table once so each sample takes constant time
+
+    if (aliasTable == null) {
+      aliasTable = new AliasTable(n);
+    }
+
+    aliasTable.build(prob, n);
+
+    reserve(m);
 
-        int len = prob[i].length;
+    // where each key sampled so far sits in the output
+    if (positions == null) {
+      positions = new IntIntMap(m);
+    }
+
+    positions.clear(m);
+
+    // the positions in clusterMembers of the samples are written into drawn
+    if (parallel) {
 
-        for (int j = 0; j < len; j++) {
+      // each chunk of samples draws from its own stream, so the samples are
+      // independent whichever thread draws them
+      SplittableRandom[] streams = new SplittableRandom[ParallelRange.chunks(m, grain)];
 
-          t += prob[i][j];
-          if (r <= t) {
-            int idx = clusters[i][j];
-            tempOutPoints.add(points[idx]);
-            tempOutWeights.add(weights[idx]/(m*prob[i][j]));
-            tempOutKeys.add(keys[idx]);
+      for (int c = 0; c < streams.length; c++) {
+        streams[c] = rng.split();
+      }
 
-            // break from loop
-            j = len;
-            i = k;
-          }
+      ParallelRange.run(m, grain, (chunk, from, to) -> {
+        for (int l = from; l < to; l++) {
+          drawn[l] = aliasTable.sample(streams[chunk].nextDouble());
         }
+      });
+    }
+    else {
+      for (int l = 0; l < m; l++) {
+        drawn[l] = aliasTable.sample(rng.nextDouble());
       }
     }
 
-    int s = tempOutPoints.size();
+    int s = 0;
 
-    outPoints = new float[s][];
-    outWeights = new float[s];
-    outKeys = new int[s];
+    // place the samples into the corset output, a point sampled more than once
+    // gets a single entry carrying the sum of its weights
+    for (int l = 0; l < m; l++) {
 
-    for (int i = 0; i < s; i++) {
-      outPoints[i] = tempOutPoints.get(i);
-      outWeights[i] = tempOutWeights.get(i);
-      outKeys[i] = tempOutKeys.get(i);
+      int j = drawn[l];
+      int idx = clusterMembers[j];
+
+      float w = weights[idx]/(m*prob[j]);
+      int position = positions.get(keys[idx]);
+
+      if (position == IntIntMap.MISSING) {
+        positions.put(keys[idx], s);
+        outPoints[s] = points[idx];
+        outWeights[s] = w;
+        outKeys[s] = keys[idx];
+        s++;
+      }
+      else {
+        outWeights[position] += w;
+      }
     }
+
+    outSize = s;
+  }
+
+  // makes sure the output buffers can hold m points
+  private void reserve(int m) {
+
+    if (outPoints != null && outPoints.length >= m) {
+      return;
+    }
+
+    outPoints = new float[m][];
+    outWeights = new float[m];
+    outKeys = new int[m];
   }
 
   // computes an (alpha, beta)-approximation using kmeans++
@@ -180,24 +388,28 @@ public class CoresetBFL {
     // compute the (alpha beta)-approximation
     kmeanspp.cluster(points, weights, keys);
 
-    clusters = kmeanspp.getClusters();
+    clusterOffsets = kmeanspp.getClusterOffsets();
+    clusterMembers = kmeanspp.getClusterMembers();
     clusterCenters = kmeanspp.getClusterCenters();
   }
 
-  // returns the points computed by the coreset
+  // returns the number of points in the coreset
+  public int getSize() {
+    return outSize;
+  }
+
+  // returns the points computed by the coreset, in the first getSize() entries
   public float[][] getPoints() {
     return outPoints;
   }
 
-  // returns the weights computed by the coreset
+  // returns the weights computed by the coreset, in the first getSize() entries
   public float[] getWeights() {
     return outWeights;
   }
 
-  // returns keys
+  // returns keys, in the first getSize() entries
   public int[] getKeys() {
     return outKeys;
   }
-
-
 }
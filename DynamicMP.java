@@ -45,8 +45,29 @@ public class DynamicMP extends DynamicAlgorithm {
   // number of points taken as medians each layer
   private int sampleSize;
 
+  // random number generator used to sample the medians
+  private SplittableRandom rng;
+
+  // closest points kept per point by the static algorithm, 0 keeps all of them
+  private int neighbors;
+
+  // the tables of the static algorithm kept between calls to cluster, which
+  // only see the coreset change by a few points. null if neighbors bounds the
+  // memory instead
+  private OnlineKMedianSession session;
+
   // constructer
   public DynamicMP(int k, Metric metric, float alpha, float beta, float epsilon) {
+    this(k, metric, alpha, beta, epsilon, new SplittableRandom());
+  }
+
+  public DynamicMP(int k, Metric metric, float alpha, float beta, float epsilon, SplittableRandom rng) {
+    this(k, metric, alpha, beta, epsilon, rng, 0);
+  }
+
+  // neighbors bounds the memory of the static algorithm run on the coreset,
+  // see OnlineKMedian
+  public DynamicMP(int k, Metric metric, float alpha, float beta, float epsilon, SplittableRandom rng, int neighbors) {
 
     // the metric
     this.metric = metric;
@@ -61,6 +82,13 @@ public class DynamicMP extends DynamicAlgorithm {
     // sampling parameter
     this.sampleSize = (int)Math.floor(alpha);
 
+    this.rng = rng;
+    this.neighbors = neighbors;
+
+    if (neighbors == 0) {
+      this.session = new OnlineKMedianSession(k, metric);
+    }
+
     // initialise the data structures
     this.space = new TreeMap<Integer, float[]>();
 
@@ -227,7 +255,6 @@ public class DynamicMP extends DynamicAlgorithm {
     Integer[] points = currentLayer.keySet().toArray(new Integer[0]);
 
     int n = points.length;
-    Random rng = new Random();
 
     // sample points as centers from this set
     TreeMap<Integer, Float> layerSamples = new TreeMap<Integer, Float>();
@@ -251,29 +278,22 @@ public class DynamicMP extends DynamicAlgorithm {
     // find how many points are assigned to each cluster center
     int[] weights = new int[m];
 
+    // look up the coordinates of the points and the sampled centers once
+    float[][] layerPoints = new float[n][];
+    float[][] layerCenters = new float[m][];
+
     for (int i = 0; i < n; i++) {
+      layerPoints[i] = this.space.get(points[i]);
+    }
 
-      // if this is a sampled point, assign to itself
-      // if (layerSamples.containsKey(points[i])) {
-      //   dist[i] = this.metric.d(this.space.get(points[i]), this.space.get(points[i]));
-      //   for (int j = 0; j < m; j++) {
-      //     if (layerSamplesArr[j].equals(points[i])) {
-      //       assignment[i] = j;
-      //     }
-      //   }
-      //   weights[assignment[i]]++;
-      //   continue;
-      // }
-
-      dist[i] = Float.POSITIVE_INFINITY;
-      assignment[i] = 0;
-      for (int j = 0; j < m; j++) {
-        float x = this.metric.d(this.space.get(points[i]), this.space.get(layerSamplesArr[j]));
-        if (x < dist[i]) {
-          dist[i] = x;
-          assignment[i] = j;
-        }
-      }
+    for (int j = 0; j < m; j++) {
+      layerCenters[j] = this.space.get(layerSamplesArr[j]);
+    }
+
+    // assign every point to its closest sampled center
+    this.metric.nearest(layerPoints, layerCenters, assignment, dist);
+
+    for (int i = 0; i < n; i++) {
       weights[assignment[i]]++;
     }
 
@@ -357,7 +377,11 @@ public class DynamicMP extends DynamicAlgorithm {
     }
 
     // call the static algorithm on the coreset
-    OnlineKMedian staticAlgo = new OnlineKMedian(k, metric);
+    if (session != null) {
+      return session.cluster(coresetPoints, coresetWeights);
+    }
+
+    OnlineKMedian staticAlgo = new OnlineKMedian(k, metric, neighbors);
 
     return staticAlgo.cluster(coresetPoints, coresetWeights);
   }
@@ -0,0 +1,93 @@
+// binary indexed tree over non-negative weights, used to sample an index with
+// probability proportional to its weight in O(log n) while weights change
+class FenwickTree {
+
+  // the number of weights
+  private int n;
+
+  // the weights themselves
+  private double[] values;
+
+  // tree[i] holds the sum of values over (i - (i & -i), i], 1-indexed
+  private double[] tree;
+
+  // the largest power of two that is at most n
+  private int top;
+
+  FenwickTree(int n) {
+    this.n = n;
+    this.values = new double[n];
+    this.tree = new double[n + 1];
+
+    this.top = Integer.highestOneBit(Math.max(n, 1));
+  }
+
+  // sets all the weights at once in O(n)
+  public void build(float[] weights) {
+    build(weights, weights.length);
+  }
+
+  // replaces the weights by the first n of weights in O(n), growing if needed
+  public void build(float[] weights, int n) {
+
+    if (values.length < n) {
+      values = new double[n];
+      tree = new double[n + 1];
+    }
+
+    this.n = n;
+    this.top = Integer.highestOneBit(Math.max(n, 1));
+
+    for (int i = 0; i < n; i++) {
+      values[i] = weights[i];
+      tree[i + 1] = weights[i];
+    }
+
+    // push each partial sum up to its parent
+    for (int i = 1; i <= n; i++) {
+      int parent = i + (i & -i);
+      if (parent <= n) {
+        tree[parent] += tree[i];
+      }
+    }
+  }
+
+  // sets the weight of index i
+  public void set(int i, double value) {
+
+    double delta = value - values[i];
+    values[i] = value;
+
+    for (int j = i + 1; j <= n; j += j & -j) {
+      tree[j] += delta;
+    }
+  }
+
+  // returns the sum of all the weights
+  public double total() {
+
+    double s = 0;
+
+    for (int j = n; j > 0; j -= j & -j) {
+      s += tree[j];
+    }
+
+    return s;
+  }
+
+  // returns the smallest index whose prefix sum of weights exceeds r
+  public int sample(double r) {
+
+    int pos = 0;
+
+    for (int step = top; step > 0; step >>= 1) {
+      if (pos + step <= n && tree[pos + step] <= r) {
+        pos += step;
+        r -= tree[pos];
+      }
+    }
+
+    // rounding can leave r just past the total
+    return Math.min(pos, n - 1);
+  }
+}
@@ -44,13 +44,29 @@ public class HenzingerTree extends DynamicAlgorithm {
   private float[] outWeights;
   private int[] outKeys;
 
+  // how every coreset in the tree computes its (alpha, beta)-approximation
+  private CoresetBFL.Approximation approximation;
+
+  // random number generator the nodes split their streams from
+  private SplittableRandom rng;
+
   private CoresetBFL outercore;
 
   public HenzingerTree(int k, Metric metric, int m) {
+    this(k, metric, m, CoresetBFL.Approximation.FULL);
+  }
+
+  public HenzingerTree(int k, Metric metric, int m, CoresetBFL.Approximation approximation) {
+    this(k, metric, m, approximation, new SplittableRandom());
+  }
+
+  public HenzingerTree(int k, Metric metric, int m, CoresetBFL.Approximation approximation, SplittableRandom rng) {
     this.k = k;
     this.metric = metric;
     this.epsilon = epsilon;
     this.m = m;
+    this.approximation = approximation;
+    this.rng = rng;
 
     this.leafFinder = new TreeMap<Integer, Leaf>();
     this.n = 0;
@@ -58,7 +74,8 @@ public class HenzingerTree extends DynamicAlgorithm {
     this.np = 0;
     this.phaseCounter = 0;
 
-    this.outercore = new CoresetBFL(k, metric, m);
+    // the root output is already smaller than m, so the outercore passes it through
+    this.outercore = new CoresetBFL(k, metric, m, approximation, rng.split());
 
     this.outPoints = new float[0][0];
     this.outWeights = new float[0];
@@ -74,7 +91,7 @@ public class HenzingerTree extends DynamicAlgorithm {
     if (leafFinder.get(key) != null) return;
 
     // create new leaf
-    Leaf leaf = new Leaf(k, metric, m, key, point);
+    Leaf leaf = new Leaf(k, metric, m, approximation, rng.split(), key, point);
 
     // check if the tree is empty
     if (n == 0) {
@@ -195,16 +212,22 @@ public class HenzingerTree extends DynamicAlgorithm {
       return;
     }
 
+    // the output of the root, which is only valid up to its size
     float[][] inPoints = root.getPoints();
     float[] inWeights = root.getWeights();
     int[] inKeys = root.getKeys();
 
-    // run the outercore
-    outercore.construct(inPoints, inWeights, inKeys, 1.0f/(n + 1), epsilon);
+    int size = root.getSize();
 
-    outPoints = outercore.getPoints();
-    outWeights = outercore.getWeights();
-    outKeys = outercore.getKeys();
+    // run the outercore on the valid prefix, only the references are copied
+    outercore.construct(Arrays.copyOf(inPoints, size), Arrays.copyOf(inWeights, size), Arrays.copyOf(inKeys, size), 1.0f/(n + 1), epsilon);
+
+    // copy out the coreset, the outercore reuses its buffers
+    int s = outercore.getSize();
+
+    outPoints = Arrays.copyOf(outercore.getPoints(), s);
+    outWeights = Arrays.copyOf(outercore.getWeights(), s);
+    outKeys = Arrays.copyOf(outercore.getKeys(), s);
   }
 
   // cluster the points in the corset
@@ -256,6 +279,16 @@ abstract class Node {
   // coreset threshold
   protected int m;
 
+  // how the coresets compute their (alpha, beta)-approximation
+  protected CoresetBFL.Approximation approximation;
+
+  // random number generator of this node
+  protected SplittableRandom rng;
+
+  // retrives the number of points in the subtree at this node, the arrays
+  // below can be longer
+  public abstract int getSize();
+
   // retrives the set of points in the subtree at this node
   public abstract float[][] getPoints();
 
@@ -287,24 +320,31 @@ class Internal extends Node {
   // right child of this node
   public Node right;
 
-  // the weighted set maintained as the output of this node
+  // the weighted set maintained as the output of this node, in the first
+  // outSize entries of the innercore's buffers
   private float[][] outPoints;
   private float[] outWeights;
   private int[] outKeys;
 
+  private int outSize;
+
   // the coreset maintained here
   private CoresetBFL innercore;
 
-  Internal(int k, Metric metric, int m) {
+  Internal(int k, Metric metric, int m, CoresetBFL.Approximation approximation, SplittableRandom rng) {
     this.k = k;
     this.metric = metric;
     this.m = m;
+    this.approximation = approximation;
+    this.rng = rng;
 
     this.outPoints = new float[0][0];
     this.outWeights = new float[0];
     this.outKeys = new int[0];
 
-    innercore = new CoresetBFL(k, metric, m);
+    // internal nodes reduce the union of two children, up to 2m points, so
+    // this is where the parallel passes pay off
+    innercore = new CoresetBFL(k, metric, m, KMeansPlusPlus.Seeding.KMEANS_PLUS_PLUS, approximation, true, rng);
   }
 
   // continue the recomputation
@@ -324,29 +364,27 @@ class Internal extends Node {
     float[][] leftPoints = left.getPoints();
     float[][] rightPoints = right.getPoints();
 
-    float[][] inPoints = new float[leftPoints.length + rightPoints.length][];
-
     float[] leftWeights = left.getWeights();
     float[] rightWeights = right.getWeights();
 
-    float[] inWeights = new float[leftWeights.length + rightWeights.length];
-
     int[] leftKeys = left.getKeys();
     int[] rightKeys = right.getKeys();
 
-    int[] inKeys = new int[leftKeys.length + rightKeys.length];
+    int leftSize = left.getSize();
+    int rightSize = right.getSize();
 
-    for (int i = 0; i < leftPoints.length; i++) {
-      inPoints[i] = leftPoints[i];
-      inWeights[i] = leftWeights[i];
-      inKeys[i] = leftKeys[i];
-    }
+    // the union of the children, the points themselves are not copied
+    float[][] inPoints = new float[leftSize + rightSize][];
+    float[] inWeights = new float[leftSize + rightSize];
+    int[] inKeys = new int[leftSize + rightSize];
 
-    for (int i = 0; i < rightPoints.length; i++) {
-      inPoints[i + leftPoints.length] = rightPoints[i];
-      inWeights[i + leftPoints.length] = rightWeights[i];
-      inKeys[i + leftPoints.length] = rightKeys[i];
-    }
+    System.arraycopy(leftPoints, 0, inPoints, 0, leftSize);
+    System.arraycopy(leftWeights, 0, inWeights, 0, leftSize);
+    System.arraycopy(leftKeys, 0, inKeys, 0, leftSize);
+
+    System.arraycopy(rightPoints, 0, inPoints, leftSize, rightSize);
+    System.arraycopy(rightWeights, 0, inWeights, leftSize, rightSize);
+    System.arraycopy(rightKeys, 0, inKeys, leftSize, rightSize);
 
     // compute the coreset
     innercore.construct(inPoints, inWeights, inKeys, lambda, epsilon);
@@ -354,6 +392,12 @@ class Internal extends Node {
     outPoints = innercore.getPoints();
     outWeights = innercore.getWeights();
     outKeys = innercore.getKeys();
+    outSize = innercore.getSize();
+  }
+
+  // return the size of the coreset output
+  public int getSize() {
+    return outSize;
   }
 
   // return coreset output points
@@ -399,10 +443,12 @@ class Leaf extends Node {
   // gets the previous leaf
   public Leaf last;
 
-  Leaf(int k, Metric metric, int m, int key, float[] point) {
+  Leaf(int k, Metric metric, int m, CoresetBFL.Approximation approximation, SplittableRandom rng, int key, float[] point) {
     this.k = k;
     this.metric = metric;
     this.m = m;
+    this.approximation = approximation;
+    this.rng = rng;
     this.key = key;
     this.point = point;
   }
@@ -417,7 +463,7 @@ class Leaf extends Node {
     this.next = leaf;
 
     // create new internal node
-    Internal internal = new Internal(k, metric, m);
+    Internal internal = new Internal(k, metric, m, approximation, rng.split());
 
     // set the pointer of the parent node
     if (this.parent != null) {
@@ -485,6 +531,11 @@ class Leaf extends Node {
     recomputeUpwards(n, lambda, epsilon);
   }
 
+  // a leaf holds a single point
+  public int getSize() {
+    return 1;
+  }
+
   // return the single point
   public float[][] getPoints() {
 
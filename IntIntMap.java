@@ -0,0 +1,110 @@
+import java.util.Arrays;
+
+// map from int keys to non-negative int values with open addressing and linear
+// probing, so neither keys nor values are boxed
+class IntIntMap {
+
+  // returned by get for keys that are not in the map
+  public static final int MISSING = -1;
+
+  // the slots, a slot is empty if its value is MISSING
+  private int[] keys;
+  private int[] values;
+
+  // the number of keys in the map
+  private int size;
+
+  // capacity - 1, the capacity being a power of two
+  private int mask;
+
+  // a map with room for expected keys before it has to grow
+  IntIntMap(int expected) {
+    allocate(capacity(expected));
+  }
+
+  // the smallest power of two that keeps the map at most half full
+  private static int capacity(int expected) {
+    return Integer.highestOneBit(Math.max(2*expected - 1, 1)) << 1;
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    values = new int[capacity];
+    Arrays.fill(values, MISSING);
+    mask = capacity - 1;
+    size = 0;
+  }
+
+  // the slot to start probing from for key
+  private int slot(int key) {
+    int h = key*0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  // returns the value of key, or MISSING if it is not in the map
+  public int get(int key) {
+
+    for (int i = slot(key); values[i] != MISSING; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return values[i];
+      }
+    }
+
+    return MISSING;
+  }
+
+  // sets the value of key, which must not be negative
+  public void put(int key, int value) {
+
+    int i = slot(key);
+
+    for (; values[i] != MISSING; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        values[i] = value;
+        return;
+      }
+    }
+
+    keys[i] = key;
+    values[i] = value;
+    size++;
+
+    if (2*size > keys.length) {
+      grow();
+    }
+  }
+
+  // the number of keys in the map
+  public int size() {
+    return size;
+  }
+
+  // removes every key, keeping room for expected keys
+  public void clear(int expected) {
+
+    int capacity = capacity(expected);
+
+    if (capacity > keys.length) {
+      allocate(capacity);
+      return;
+    }
+
+    Arrays.fill(values, MISSING);
+    size = 0;
+  }
+
+  // doubles the capacity and reinserts every key
+  private void grow() {
+
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+
+    allocate(2*oldKeys.length);
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != MISSING) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,280 @@
+import java.util.Arrays;
+
+/*
+
+kd-tree over a fixed set of points, used by the filtering algorithm of Kanungo
+et al. 2002 to assign the points to their closest centers under the L2 norm
+
+*/
+
+class KDTree {
+
+  // nodes with at most this many points are not split
+  private static final int LEAF_SIZE = 16;
+
+  // a center is only pruned if it is farther than this margin, so that points
+  // that are tied up to rounding are still compared directly
+  private static final double MARGIN = 1e-5;
+
+  // the points in the tree
+  private float[][] points;
+
+  // the number of points and their dimension
+  private int n;
+  private int d;
+
+  // the indices of the points, ordered so each node covers a contiguous range
+  private int[] perm;
+
+  // the number of nodes, the root is node 0
+  private int nodes;
+
+  // node i covers perm[start[i]] to perm[end[i] - 1], left[i] is -1 for leaves
+  private int[] start;
+  private int[] end;
+  private int[] left;
+  private int[] right;
+
+  // bounding box of the points in node i, lo[i*d + j] to hi[i*d + j]
+  private float[] lo;
+  private float[] hi;
+
+  // the candidate centers at each depth of the search
+  private int[][] candidates;
+
+  KDTree(float[][] points, int n) {
+
+    this.points = points;
+    this.n = n;
+    this.d = points[0].length;
+
+    this.perm = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      perm[i] = i;
+    }
+
+    int capacity = Math.max(1, 2*n/LEAF_SIZE + 1);
+
+    this.start = new int[capacity];
+    this.end = new int[capacity];
+    this.left = new int[capacity];
+    this.right = new int[capacity];
+    this.lo = new float[capacity*d];
+    this.hi = new float[capacity*d];
+
+    this.candidates = new int[0][];
+
+    build(0, n);
+  }
+
+  // builds the subtree over perm[s] to perm[t - 1] and returns its node
+  private int build(int s, int t) {
+
+    int node = nodes++;
+
+    if (node == start.length) {
+      grow();
+    }
+
+    start[node] = s;
+    end[node] = t;
+    left[node] = -1;
+    right[node] = -1;
+
+    // compute the bounding box and its widest dimension
+    int offset = node*d;
+
+    for (int j = 0; j < d; j++) {
+      lo[offset + j] = Float.POSITIVE_INFINITY;
+      hi[offset + j] = Float.NEGATIVE_INFINITY;
+    }
+
+    for (int i = s; i < t; i++) {
+      float[] x = points[perm[i]];
+      for (int j = 0; j < d; j++) {
+        lo[offset + j] = Math.min(lo[offset + j], x[j]);
+        hi[offset + j] = Math.max(hi[offset + j], x[j]);
+      }
+    }
+
+    int widest = 0;
+
+    for (int j = 1; j < d; j++) {
+      if (hi[offset + j] - lo[offset + j] > hi[offset + widest] - lo[offset + widest]) {
+        widest = j;
+      }
+    }
+
+    // small nodes and nodes of identical points are leaves
+    if (t - s <= LEAF_SIZE || !(hi[offset + widest] > lo[offset + widest])) {
+      return node;
+    }
+
+    // split at the middle of the box, both sides are non-empty
+    float split = lo[offset + widest] + 0.5f*(hi[offset + widest] - lo[offset + widest]);
+
+    int i = s;
+    int j = t - 1;
+
+    while (i <= j) {
+      if (points[perm[i]][widest] <= split) {
+        i++;
+      }
+      else {
+        int temp = perm[i];
+        perm[i] = perm[j];
+        perm[j] = temp;
+        j--;
+      }
+    }
+
+    // rounding can put the split on the largest value
+    if (i == t) {
+      return node;
+    }
+
+    int l = build(s, i);
+    int r = build(i, t);
+
+    left[node] = l;
+    right[node] = r;
+
+    return node;
+  }
+
+  // doubles the space for nodes
+  private void grow() {
+
+    int capacity = 2*start.length;
+
+    start = Arrays.copyOf(start, capacity);
+    end = Arrays.copyOf(end, capacity);
+    left = Arrays.copyOf(left, capacity);
+    right = Arrays.copyOf(right, capacity);
+    lo = Arrays.copyOf(lo, capacity*d);
+    hi = Arrays.copyOf(hi, capacity*d);
+  }
+
+  // writes the index of the closest of the centers to each point into assignment,
+  // ties go to the center with the smallest index
+  public void assign(float[][] centers, Metric metric, int[] assignment) {
+
+    int k = centers.length;
+
+    if (candidates.length == 0 || candidates[0].length != k) {
+      candidates = new int[1][k];
+    }
+
+    for (int j = 0; j < k; j++) {
+      candidates[0][j] = j;
+    }
+
+    filter(0, 0, k, centers, metric, assignment);
+  }
+
+  // assigns the points of node to the first count centers of candidates[depth]
+  private void filter(int node, int depth, int count, float[][] centers, Metric metric, int[] assignment) {
+
+    int[] current = candidates[depth];
+
+    // a single candidate takes every point in the node
+    if (count == 1) {
+      for (int i = start[node]; i < end[node]; i++) {
+        assignment[perm[i]] = current[0];
+      }
+      return;
+    }
+
+    // compare the remaining candidates directly at the leaves
+    if (left[node] < 0) {
+
+      for (int i = start[node]; i < end[node]; i++) {
+
+        float[] x = points[perm[i]];
+
+        float best = Float.POSITIVE_INFINITY;
+        int l = current[0];
+
+        for (int c = 0; c < count; c++) {
+
+          float dist = metric.d(x, centers[current[c]], best);
+
+          if (dist < best) {
+            best = dist;
+            l = current[c];
+          }
+        }
+
+        assignment[perm[i]] = l;
+      }
+      return;
+    }
+
+    if (depth + 1 == candidates.length) {
+      candidates = Arrays.copyOf(candidates, 2*candidates.length);
+      for (int i = depth + 1; i < candidates.length; i++) {
+        candidates[i] = new int[current.length];
+      }
+    }
+
+    int offset = node*d;
+
+    // find the candidate closest to the middle of the box
+    int closest = current[0];
+    double closestDist = Double.POSITIVE_INFINITY;
+
+    for (int c = 0; c < count; c++) {
+
+      float[] z = centers[current[c]];
+      double dist = 0;
+
+      for (int j = 0; j < d; j++) {
+        double diff = z[j] - 0.5*((double)lo[offset + j] + hi[offset + j]);
+        dist += diff*diff;
+      }
+
+      if (dist < closestDist) {
+        closestDist = dist;
+        closest = current[c];
+      }
+    }
+
+    // keep the candidates that are not farther than it from the whole box,
+    // in order so ties still go to the smallest index
+    int[] next = candidates[depth + 1];
+    int kept = 0;
+
+    float[] best = centers[closest];
+
+    for (int c = 0; c < count; c++) {
+      if (current[c] == closest || !farther(centers[current[c]], best, offset)) {
+        next[kept++] = current[c];
+      }
+    }
+
+    filter(left[node], depth + 1, kept, centers, metric, assignment);
+    filter(right[node], depth + 1, kept, centers, metric, assignment);
+  }
+
+  // returns whether z is farther than best from every point of the box at offset,
+  // it is enough to compare them at the corner of the box furthest towards z
+  private boolean farther(float[] z, float[] best, int offset) {
+
+    double zDist = 0;
+    double bestDist = 0;
+
+    for (int j = 0; j < d; j++) {
+
+      float v = (z[j] > best[j]) ? hi[offset + j] : lo[offset + j];
+
+      double dz = z[j] - v;
+      double db = best[j] - v;
+
+      zDist += dz*dz;
+      bestDist += db*db;
+    }
+
+    return zDist > bestDist*(1 + MARGIN) + Double.MIN_NORMAL;
+  }
+}
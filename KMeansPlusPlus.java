@@ -9,6 +9,37 @@ an implementation of the kmeans++ algorithm
 
 class KMeansPlusPlus {
 
+  // ways of choosing the starting centers
+  public enum Seeding {
+
+    // D^2 sampling of Arthur and Vassilvitskii, one center at a time
+    KMEANS_PLUS_PLUS,
+
+    // oversampled D^2 sampling of Bahmani et al. (k-means||), run over the fork
+    // join pool and reduced to k centers with KMEANS_PLUS_PLUS
+    KMEANS_PARALLEL
+  }
+
+  // ways of assigning the points to their closest centers in each iteration
+  public enum Assignment {
+
+    // compare every point against every center
+    BRUTE_FORCE,
+
+    // keep Hamerly's bounds between iterations and skip points whose center
+    // cannot have changed, falls back to BRUTE_FORCE if the metric does not
+    // satisfy the triangle inequality
+    HAMERLY,
+
+    // build a kd-tree over the points once per call and prune whole cells of
+    // centers with the filtering algorithm of Kanungo et al., falls back to
+    // HAMERLY if the metric is not euclidean
+    FILTERING,
+
+    // FILTERING on large low dimensional euclidean inputs, HAMERLY otherwise
+    AUTO
+  }
+
   // the points that we want to cluster
   private float[][] points;
 
@@ -30,26 +61,135 @@ class KMeansPlusPlus {
   // dimension of the data
   private int d;
 
-  // number of post processing iterations
+  // maximum number of post processing iterations
   private int iterations;
 
-  // the clusters we want to find
+  // stop iterating once an iteration improves the cost by less than this
+  // fraction, 0 only stops once no point changes cluster
+  private float tolerance;
+
+  // number of points sampled in each mini-batch iteration, 0 runs full Lloyd
+  // iterations over every point instead
+  private int batchSize;
+
+  // number of points that changed cluster in the last assignment
+  private int reassigned;
+
+  // the cost of the solution, computed when first asked for
+  private double cost;
+
+  // the clusters we want to find, the points of cluster i are
+  // clusterMembers[clusterOffsets[i]] to clusterMembers[clusterOffsets[i + 1] - 1]
+  private int[] clusterOffsets;
+  private int[] clusterMembers;
+
+  // the same clusters as separate arrays, only built when asked for
   private int[][] clusters;
 
   // the centers of these clusters
   private int[] clusterCenters;
 
+  // how the starting centers are chosen
+  private Seeding seeding;
+
+  // how points are assigned to centers, as asked for and as used in this call
+  private Assignment engine;
+  private Assignment activeEngine;
+
+  // kd-tree over the points for FILTERING, built once per call
+  private KDTree tree;
+
+  // the centers the points are currently assigned to
+  private float[][] centers;
+
+  // the index of the cluster each point is assigned to
+  private int[] assignment;
+
+  // upper bound on the distance from each point to its center and lower bound
+  // on its distance to every other center, kept between iterations
+  private float[] upper;
+  private float[] lower;
+
+  // whether upper holds the exact distance from each point to its center, which
+  // is only the case right after a brute force assignment
+  private boolean exactUpper;
+
+  // scratch buffers of the calling thread
+  private KMeansWorkspace workspace;
+
+  // random number generator used for seeding and sampling, the nested runs and
+  // parallel chunks get streams split from it
+  private SplittableRandom rng;
+
+  // number of rounds and oversampling factor (times k) of KMEANS_PARALLEL
+  private static final int PARALLEL_ROUNDS = 5;
+  private static final int OVERSAMPLING = 2;
+
+  // number of points handled by each task of the fork join pool
+  private static final int GRAIN = 1024;
+
+  // AUTO uses FILTERING up to this dimension and from this many points, above
+  // it kd-trees prune too little to pay for themselves
+  private static final int FILTERING_MAX_DIMENSION = 16;
+  private static final int FILTERING_MIN_POINTS = 1024;
+
   // set the metric and the value k
-  KMeansPlusPlus(int k, Metric metric, int iterations) {
+  KMeansPlusPlus(int k, Metric metric, int iterations, Seeding seeding, Assignment engine, SplittableRandom rng) {
     this.metric = metric;
     this.k = k;
     this.iterations = iterations;
+    this.seeding = seeding;
+    this.engine = engine;
+
+    this.rng = rng;
+  }
+
+  KMeansPlusPlus(int k, Metric metric, int iterations, Seeding seeding, Assignment engine) {
+    this(k, metric, iterations, seeding, engine, new SplittableRandom());
+  }
+
+  KMeansPlusPlus(int k, Metric metric, int iterations, Seeding seeding, SplittableRandom rng) {
+    this(k, metric, iterations, seeding, Assignment.AUTO, rng);
+  }
+
+  // at most iterations Lloyd iterations, stopping early once they improve the
+  // cost by less than a fraction tolerance
+  static KMeansPlusPlus withTolerance(int k, Metric metric, int iterations, float tolerance, SplittableRandom rng) {
+    KMeansPlusPlus kmeanspp = new KMeansPlusPlus(k, metric, iterations, Seeding.KMEANS_PLUS_PLUS, Assignment.AUTO, rng);
+    kmeanspp.tolerance = tolerance;
+    return kmeanspp;
+  }
+
+  static KMeansPlusPlus withTolerance(int k, Metric metric, int iterations, float tolerance) {
+    return withTolerance(k, metric, iterations, tolerance, new SplittableRandom());
+  }
+
+  // mini-batch k-means of Sculley 2010, each iteration moves the centers
+  // towards batchSize points sampled proportionally to their weights
+  static KMeansPlusPlus withMiniBatches(int k, Metric metric, int iterations, int batchSize, SplittableRandom rng) {
+    KMeansPlusPlus kmeanspp = new KMeansPlusPlus(k, metric, iterations, Seeding.KMEANS_PLUS_PLUS, Assignment.AUTO, rng);
+    kmeanspp.batchSize = batchSize;
+    return kmeanspp;
+  }
+
+  static KMeansPlusPlus withMiniBatches(int k, Metric metric, int iterations, int batchSize) {
+    return withMiniBatches(k, metric, iterations, batchSize, new SplittableRandom());
+  }
+
+  KMeansPlusPlus(int k, Metric metric, int iterations, Seeding seeding) {
+    this(k, metric, iterations, seeding, Assignment.AUTO);
+  }
+
+  KMeansPlusPlus(int k, Metric metric, int iterations, Assignment engine) {
+    this(k, metric, iterations, Seeding.KMEANS_PLUS_PLUS, engine);
+  }
+
+  KMeansPlusPlus(int k, Metric metric, int iterations) {
+    this(k, metric, iterations, Seeding.KMEANS_PLUS_PLUS, Assignment.AUTO);
   }
 
   KMeansPlusPlus(int k, Metric metric) {
-    this.metric = metric;
-    this.k = k;
-    this.iterations = 2;
+    this(k, metric, 2);
   }
 
   // METHODS TO CALL THE CLUSTERING
@@ -122,6 +262,12 @@ class KMeansPlusPlus {
     // the number of points
     this.n = points.length;
 
+    // forget the centers and cost of any previous call
+    this.centers = null;
+    this.cost = Double.NaN;
+
+    this.workspace = KMeansWorkspace.get();
+
     // set the dimension of the data
     if (this.n > 0) {
       this.d = points[0].length;
@@ -130,6 +276,9 @@ class KMeansPlusPlus {
       return new TreeMap<Integer, Integer>();
     }
 
+    this.activeEngine = chooseEngine();
+    this.tree = null;
+
     return kmeansplusplus(iterations, startingConfig);
   }
 
@@ -152,7 +301,15 @@ class KMeansPlusPlus {
       return returnAll();
     }
 
-    if (startingConfig == null) {
+    if (batchSize > 0) {
+      return miniBatch(iterations, startingConfig);
+    }
+
+    if (startingConfig == null && seeding == Seeding.KMEANS_PARALLEL) {
+      // seed good starting centers in parallel and create clusters
+      seedParallelStartingCenters();
+    }
+    else if (startingConfig == null) {
       // seed good starting centers and create clusters
       seedStartingCenters();
     }
@@ -168,13 +325,36 @@ class KMeansPlusPlus {
     return createSolution();
   }
 
+  // the assignment engine to use on the current input
+  private Assignment chooseEngine() {
+
+    Assignment chosen = engine;
+
+    if (chosen == Assignment.AUTO) {
+      boolean lowDimensional = d <= FILTERING_MAX_DIMENSION && n >= FILTERING_MIN_POINTS;
+      chosen = lowDimensional ? Assignment.FILTERING : Assignment.HAMERLY;
+    }
+
+    if (chosen == Assignment.FILTERING && !metric.isEuclidean()) {
+      chosen = Assignment.HAMERLY;
+    }
+
+    if (chosen == Assignment.HAMERLY && !metric.satisfiesTriangleInequality()) {
+      chosen = Assignment.BRUTE_FORCE;
+    }
+
+    return chosen;
+  }
+
   // create a trivial solution if n is too small
   private TreeMap<Integer, Integer > returnAll() {
 
-    this.clusters = new int[n][1];
-
     // create the clusters and centers
-    this.clusterCenters = new int[n];
+    this.clusterOffsets = reuse(clusterOffsets, n + 1);
+    this.clusterMembers = reuseAtLeast(clusterMembers, n);
+    this.clusters = null;
+
+    this.clusterCenters = reuse(clusterCenters, n);
 
     // create solution
     TreeMap<Integer, Integer> solution = new TreeMap<Integer, Integer>();
@@ -182,7 +362,8 @@ class KMeansPlusPlus {
     int i = 0;
     for (int key : keys) {
       solution.put(key, key);
-      this.clusters[i][0] = i;
+      this.clusterOffsets[i + 1] = i + 1;
+      this.clusterMembers[i] = i;
       this.clusterCenters[i] = i;
       i++;
     }
@@ -192,91 +373,270 @@ class KMeansPlusPlus {
   // find a good starting point for kmeans
   private void seedStartingCenters() {
 
-    // total weight of points
-    float totalWeight = 0;
+    // the first center is sampled proportionally to the weights
+    FenwickTree tree = workspace.tree();
+    tree.build(weights, n);
 
-    for (int i = 0; i < n; i++) {
-      totalWeight += weights[i];
+    float[][] samplePoints = workspace.samples(k);
+
+    // distances from samples points
+    float[] dist = workspace.dist(n);
+
+    for (int i = 0; i < k; i++) {
+      samplePoints[i] = points[dSquaredWeighting(tree, dist)];
     }
 
-    // create array with sampling probabilities
-    float[] probs = new float[n];
+    // create the initial clusters
+    createClusters(samplePoints);
+  }
+
+  // sample a point according to D^2 weighting, tree holds weights[i]*dist[i]^2
+  private int dSquaredWeighting(FenwickTree tree, float[] dist) {
+
+    double total = tree.total();
+
+    // if every points is already at a point thats been sampled
+    int sample = 0;
+
+    if (total > 0) {
+      sample = tree.sample(rng.nextDouble()*total);
+    }
 
+    // only the points that got closer to a sample change their weight
     for (int i = 0; i < n; i++) {
-      probs[i] = weights[i]/totalWeight;
+
+      float d = metric.d(points[i], points[sample], dist[i]);
+
+      if (d < dist[i]) {
+        dist[i] = d;
+        tree.set(i, weights[i]*d*d);
+      }
     }
 
-    // create random number generator
-    Random rng = new Random();
+    return sample;
+  }
 
-    float[][] samplePoints = new float[k][d];
+  // find a good starting point for kmeans with k-means||
+  private void seedParallelStartingCenters() {
 
-    // distances from samples points
+    int chunks = ParallelRange.chunks(n, GRAIN);
+
+    // the first candidate is sampled proportionally to the weights
+    FenwickTree tree = new FenwickTree(n);
+    tree.build(weights);
+
+    int[] candidates = new int[OVERSAMPLING*k*PARALLEL_ROUNDS + 1];
+    int found = 0;
+
+    candidates[found++] = tree.sample(rng.nextDouble()*tree.total());
+
+    // distances from the candidates found so far, and the closest candidate
     float[] dist = new float[n];
     Arrays.fill(dist, Float.POSITIVE_INFINITY);
 
-    for (int i = 0; i < k; i++) {
-      samplePoints[i] = points[dSquaredWeighting(rng, probs, dist)];
+    int[] owner = new int[n];
+
+    // the points picked in a round and the cost of each chunk
+    boolean[] picked = new boolean[n];
+    double[] chunkCosts = new double[chunks];
+
+    // the closest of the candidates added in the last round
+    int[] closest = workspace.closest(n);
+    float[] closestDist = workspace.closestDist(n);
+
+    int from = 0;
+
+    for (int round = 0; round <= PARALLEL_ROUNDS; round++) {
+
+      // move the distances to the candidates added in the last round
+      final int offset = from;
+      float[][] newCandidates = new float[found - from][];
+
+      for (int c = from; c < found; c++) {
+        newCandidates[c - from] = points[candidates[c]];
+      }
+
+      ParallelRange.run(n, GRAIN, (chunk, s, t) -> {
+
+        metric.nearest(points, s, t, newCandidates, closest, closestDist);
+
+        double cost = 0;
+        for (int i = s; i < t; i++) {
+          if (closestDist[i] < dist[i]) {
+            dist[i] = closestDist[i];
+            owner[i] = offset + closest[i];
+          }
+          cost += weights[i]*(double)dist[i]*dist[i];
+        }
+        chunkCosts[chunk] = cost;
+      });
+
+      from = found;
+
+      if (round == PARALLEL_ROUNDS) break;
+
+      double cost = 0;
+      for (double c : chunkCosts) {
+        cost += c;
+      }
+
+      // every point is already at a candidate
+      if (cost <= 0) break;
+
+      // pick each point independently with probability proportional to its cost,
+      // each chunk draws from its own stream
+      final double factor = OVERSAMPLING*k/cost;
+      SplittableRandom[] streams = new SplittableRandom[chunks];
+
+      for (int c = 0; c < chunks; c++) {
+        streams[c] = rng.split();
+      }
+
+      ParallelRange.run(n, GRAIN, (chunk, s, t) -> {
+        SplittableRandom stream = streams[chunk];
+        for (int i = s; i < t; i++) {
+          picked[i] = stream.nextDouble() < factor*weights[i]*dist[i]*dist[i];
+        }
+      });
+
+      // collect the picked points in order
+      for (int i = 0; i < n; i++) {
+        if (picked[i]) {
+          if (found == candidates.length) {
+            candidates = Arrays.copyOf(candidates, 2*found);
+          }
+          candidates[found++] = i;
+        }
+      }
+    }
+
+    // weigh each candidate by the weight of the points closest to it
+    float[][] candidatePoints = new float[found][];
+    int[] candidateKeys = new int[found];
+
+    for (int c = 0; c < found; c++) {
+      candidatePoints[c] = points[candidates[c]];
+      candidateKeys[c] = c;
+    }
+
+    float[] candidateWeights = new float[found];
+
+    for (int i = 0; i < n; i++) {
+      candidateWeights[owner[i]] += weights[i];
+    }
+
+    // reduce the weighted candidates to k centers
+    KMeansPlusPlus reduce = new KMeansPlusPlus(k, metric, iterations, Seeding.KMEANS_PLUS_PLUS, engine, rng.split());
+    reduce.cluster(candidatePoints, candidateWeights, candidateKeys);
+
+    int[] reduced = reduce.getClusterCenters();
+
+    float[][] samplePoints = new float[reduced.length][];
+
+    for (int i = 0; i < reduced.length; i++) {
+      samplePoints[i] = candidatePoints[reduced[i]];
     }
 
     // create the initial clusters
     createClusters(samplePoints);
   }
 
-  // sample a point according to D^2 weighting
-  private int dSquaredWeighting(Random rng, float[] probs, float[] dist) {
+  // mini-batch k-means, seeded on a sample of the points and followed by a
+  // single assignment of every point to the final centers
+  private TreeMap<Integer, Integer> miniBatch(int iterations, float[][] startingConfig) {
 
-    float r = rng.nextFloat();
-    float s = 0;
+    // batches are sampled proportionally to the weights, so every sampled
+    // point counts the same in the updates
+    FenwickTree tree = new FenwickTree(n);
+    tree.build(weights);
 
-    int sample = 0;
+    double total = tree.total();
 
-    // sample a point from the distribution defined by probs
-    for (int i = 0; i < n; i++) {
-      s += probs[i];
-      if (r <= s) {
-        sample = i;
-        break;
+    int m = Math.min(n, batchSize);
+
+    float[][] batch = new float[Math.max(m, k + 1)][];
+    int[] batchAssignment = new int[m];
+    float[] batchDist = new float[m];
+
+    // the centers move during the iterations, so they are copies of the points
+    float[][] batchCenters = new float[k][];
+
+    if (startingConfig == null) {
+
+      // seed on a sample large enough to hold more than k distinct draws
+      float[] sampleWeights = new float[batch.length];
+      int[] sampleKeys = new int[batch.length];
+
+      for (int i = 0; i < batch.length; i++) {
+        batch[i] = points[tree.sample(rng.nextDouble()*total)];
+        sampleWeights[i] = 1;
+        sampleKeys[i] = i;
       }
-    }
 
-    // compute the new distances and probabilities
-    float totalDSquared = 0;
+      KMeansPlusPlus seed = new KMeansPlusPlus(k, metric, 0, seeding, engine, rng.split());
+      seed.cluster(batch, sampleWeights, sampleKeys);
 
-    for (int i = 0; i < n; i++) {
-      dist[i] = Math.min(dist[i], metric.d(points[i], points[sample]));
-      totalDSquared += weights[i]*dist[i]*dist[i];
-    }
+      int[] seeds = seed.getClusterCenters();
 
-    // if every points is already at a point thats been sampled
-    if (totalDSquared <= 0) {
-      probs[0] = 1;
-      for (int i = 1; i < n; i++) {
-        probs[i] = 0;
+      for (int i = 0; i < k; i++) {
+        batchCenters[i] = batch[seeds[i]].clone();
+      }
+    }
+    else {
+      for (int i = 0; i < k; i++) {
+        batchCenters[i] = (i < startingConfig.length ? startingConfig[i] : points[i]).clone();
       }
-      return sample;
     }
 
-    for (int i = 0; i < n; i++) {
-      probs[i] = weights[i]*dist[i]*dist[i]/totalDSquared;
+    // number of points each center has absorbed, its learning rate is the inverse
+    float[] counts = new float[k];
+
+    float[][] batchPoints = (batch.length == m) ? batch : new float[m][];
+
+    for (int t = 0; t < iterations; t++) {
+
+      for (int i = 0; i < m; i++) {
+        batchPoints[i] = points[tree.sample(rng.nextDouble()*total)];
+      }
+
+      // assign the whole batch before moving any center
+      metric.nearest(batchPoints, batchCenters, batchAssignment, batchDist);
+
+      for (int i = 0; i < m; i++) {
+
+        int c = batchAssignment[i];
+        float[] x = batchPoints[i];
+        float[] center = batchCenters[c];
+
+        counts[c]++;
+        float eta = 1/counts[c];
+
+        for (int j = 0; j < d; j++) {
+          center[j] += eta*(x[j] - center[j]);
+        }
+      }
     }
 
-    return sample;
+    // create the clusters of every point
+    createClusters(batchCenters);
+
+    return createSolution();
   }
 
   // get the point in cluster i closest to the center of mass of cluster i
   private int getClusterCenter(int i) {
 
-    float[] centerOfMass = clusterCenterOfMass(i);
+    float[] centerOfMass = clusterCenterOfMass(i, workspace.center(d));
 
-    if (clusters[i].length == 0) {
+    if (clusterOffsets[i] == clusterOffsets[i + 1]) {
       return 0;
     }
 
-    int closestPoint = clusters[i][0];
+    int closestPoint = clusterMembers[clusterOffsets[i]];
     float dist = Float.POSITIVE_INFINITY;
 
-    for (int j : clusters[i]) {
+    for (int l = clusterOffsets[i]; l < clusterOffsets[i + 1]; l++) {
+      int j = clusterMembers[l];
       float d = metric.d(points[j], centerOfMass);
       if (d < dist) {
         closestPoint = j;
@@ -290,22 +650,60 @@ class KMeansPlusPlus {
   // standard kmeans
   private void kmeans(int iterations) {
 
-    // run iterations many interations of kmeans heuristic
+    // the cost is only tracked if it can stop the iterations
+    double cost = (tolerance > 0) ? assignmentCost() : 0;
+
+    // run up to iterations many interations of kmeans heuristic
     for (int i = 0; i < iterations; i++) {
+
       kmeansIteration();
+
+      // nothing moved, so every further iteration would give the same clusters
+      if (reassigned == 0) break;
+
+      if (tolerance > 0) {
+
+        double newCost = assignmentCost();
+        boolean converged = cost - newCost < tolerance*cost;
+
+        cost = newCost;
+
+        if (converged) break;
+      }
     }
   }
 
+  // the weighted cost of assigning each point to its current center
+  private double assignmentCost() {
+
+    double cost = 0;
+
+    // the brute force assignment leaves the exact distances in upper
+    if (exactUpper) {
+      for (int i = 0; i < n; i++) {
+        cost += weights[i]*upper[i];
+      }
+      return cost;
+    }
+
+    for (int i = 0; i < n; i++) {
+      cost += weights[i]*metric.d(points[i], centers[assignment[i]]);
+    }
+
+    return cost;
+  }
+
   // one iteration of kmeans
   private void kmeansIteration() {
 
-    // find the centers of mass
-    float[][] newCenters = new float[k][d];
+    // find the centers of mass, keeping the current centers for the bounds
+    float[][] newCenters = workspace.centers(k, d, centers);
 
     for (int i = 0; i < k; i++) {
 
       // get cluster center of mass
-      newCenters[i] = clusterCenterOfMass(i);
+      Arrays.fill(newCenters[i], 0);
+      clusterCenterOfMass(i, newCenters[i]);
     }
 
     // create the new clusters
@@ -330,59 +728,208 @@ class KMeansPlusPlus {
       }
     }
 
-    @SuppressWarnings("unchecked")
-    ArrayList<Integer>[] tempClusters = new ArrayList[k];
+    // keep the current assignment to count how many points move
+    int[] previous = null;
 
-    // reset the clusters
-    for (int i = 0; i < k; i++) {
-      tempClusters[i] = new ArrayList<Integer>();
+    if (centers != null) {
+      previous = workspace.previous(n);
+      System.arraycopy(assignment, 0, previous, 0, n);
     }
 
     // re-allocate points to clusters
-    for (int i = 0; i < n; i++) {
+    exactUpper = false;
 
-      float dist = Float.POSITIVE_INFINITY;
-      int l = 0;
+    if (activeEngine == Assignment.HAMERLY) {
+      hamerlyAssignment(newCenters);
+    }
+    else if (activeEngine == Assignment.FILTERING) {
+      filteringAssignment(newCenters);
+    }
+    else {
+      bruteForceAssignment(newCenters);
+    }
 
-      for (int j = 0; j < k; j++) {
+    centers = newCenters;
 
-        float d = metric.d(newCenters[j], points[i]);
+    reassigned = n;
 
-        // is point is closer to cluster center j than l
-        if (d < dist) {
-          dist = d;
-          l = j;
-        }
+    if (previous != null) {
+      reassigned = 0;
+      for (int i = 0; i < n; i++) {
+        if (previous[i] != assignment[i]) reassigned++;
       }
+    }
+
+    // group the points by cluster with a counting sort
+    clusterOffsets = reuse(clusterOffsets, k + 1);
+    clusterMembers = reuseAtLeast(clusterMembers, n);
+    clusters = null;
+
+    Arrays.fill(clusterOffsets, 0);
 
-      // place point in cluster l
-      tempClusters[l].add(i);
+    for (int i = 0; i < n; i++) {
+      clusterOffsets[assignment[i] + 1]++;
     }
 
-    clusters = new int[k][];
+    for (int j = 0; j < k; j++) {
+      clusterOffsets[j + 1] += clusterOffsets[j];
+    }
 
-    for (int i = 0; i < k; i++) {
-      clusters[i] = new int[tempClusters[i].size()];
+    int[] next = workspace.next(k);
+    System.arraycopy(clusterOffsets, 0, next, 0, k);
 
-      for (int j = 0; j < clusters[i].length; j++) {
-        clusters[i][j] = (int)(tempClusters[i].get(j));
-      }
+    // points stay in increasing order within each cluster
+    for (int i = 0; i < n; i++) {
+      clusterMembers[next[assignment[i]]++] = i;
     }
   }
 
-  // returns the center of mass of cluster i
-  private float[] clusterCenterOfMass(int i) {
+  // assign every point to its closest center, in parallel for large n
+  private void bruteForceAssignment(float[][] newCenters) {
+
+    assignment = workspace.assignment(n);
+    upper = workspace.upper(n);
+
+    exactUpper = true;
+
+    if (n <= GRAIN) {
+      metric.nearest(points, newCenters, assignment, upper);
+      return;
+    }
+
+    // each chunk writes its own range of assignment and upper
+    ParallelRange.run(n, GRAIN, (chunk, s, t) -> {
+      metric.nearest(points, s, t, newCenters, assignment, upper);
+    });
+  }
 
-    // the center of mass
-    float[] center = new float[d];
+  // assign every point to its closest center by filtering candidates down a kd-tree
+  private void filteringAssignment(float[][] newCenters) {
 
-    // the points in the cluster
-    int[] cluster = clusters[i];
+    // the tree only depends on the points, so it is reused across iterations
+    if (tree == null) {
+      tree = new KDTree(points, n);
+    }
+
+    assignment = workspace.assignment(n);
+
+    tree.assign(newCenters, metric, assignment);
+  }
+
+  // assign every point to its closest center using the bounds of Hamerly 2010,
+  // giving the same assignment as bruteForceAssignment
+  private void hamerlyAssignment(float[][] newCenters) {
+
+    // without previous centers there are no bounds to update yet
+    if (centers == null) {
+
+      bruteForceAssignment(newCenters);
+
+      // no distance is negative, so 0 is a valid lower bound
+      lower = workspace.lower(n);
+      return;
+    }
+
+    // how far each center moved, and the two largest moves
+    float[] moves = workspace.moves(k);
+
+    float maxMove = 0;
+    float secondMaxMove = 0;
+    int maxMover = -1;
+
+    for (int j = 0; j < k; j++) {
+
+      moves[j] = metric.d(centers[j], newCenters[j]);
+
+      if (moves[j] > maxMove) {
+        secondMaxMove = maxMove;
+        maxMove = moves[j];
+        maxMover = j;
+      }
+      else if (moves[j] > secondMaxMove) {
+        secondMaxMove = moves[j];
+      }
+    }
+
+    // half the distance from each center to the closest other center
+    float[] halfGap = workspace.halfGap(k);
+    Arrays.fill(halfGap, 0, k, Float.POSITIVE_INFINITY);
+
+    for (int j = 0; j < k; j++) {
+      for (int l = j + 1; l < k; l++) {
+
+        float d = 0.5f*metric.d(newCenters[j], newCenters[l]);
+
+        if (d < halfGap[j]) halfGap[j] = d;
+        if (d < halfGap[l]) halfGap[l] = d;
+      }
+    }
+
+    final float largestMove = maxMove;
+    final float secondLargestMove = secondMaxMove;
+    final int largestMover = maxMover;
+
+    // distances from a point to every center when it needs a full scan, one
+    // row for each chunk
+    float[][] scans = workspace.scans(ParallelRange.chunks(n, GRAIN), k);
+
+    // the points are independent of each other
+    ParallelRange.run(n, GRAIN, (chunk, s, t) -> {
+
+      float[] dist = scans[chunk];
+
+      for (int i = s; i < t; i++) {
+
+        int a = assignment[i];
+
+        // move the bounds by how far the centers moved
+        upper[i] += moves[a];
+        lower[i] -= (a == largestMover) ? secondLargestMove : largestMove;
+
+        // the strict comparisons keep ties going to the smallest index
+        float bound = Math.max(halfGap[a], lower[i]);
+
+        if (upper[i] < bound) continue;
+
+        // tighten the upper bound and check again
+        upper[i] = metric.d(points[i], newCenters[a]);
+
+        if (upper[i] < bound) continue;
+
+        // find the closest and second closest centers
+        metric.d(points[i], newCenters, dist);
+
+        float best = Float.POSITIVE_INFINITY;
+        float second = Float.POSITIVE_INFINITY;
+        int l = 0;
+
+        for (int j = 0; j < k; j++) {
+          if (dist[j] < best) {
+            second = best;
+            best = dist[j];
+            l = j;
+          }
+          else if (dist[j] < second) {
+            second = dist[j];
+          }
+        }
+
+        assignment[i] = l;
+        upper[i] = best;
+        lower[i] = second;
+      }
+    });
+  }
+
+  // writes the center of mass of cluster i into center, which starts at 0
+  private float[] clusterCenterOfMass(int i, float[] center) {
 
     // total weight of points in this cluster
     float totalWeight = 0;
 
-    for (int p : cluster) {
+    for (int l = clusterOffsets[i]; l < clusterOffsets[i + 1]; l++) {
+
+      int p = clusterMembers[l];
 
       // get the point and its weight
       float[] x = points[p];
@@ -408,7 +955,7 @@ class KMeansPlusPlus {
     TreeMap<Integer, Integer> solution = new TreeMap<Integer, Integer>();
 
     // put cluster centers
-    this.clusterCenters = new int[k];
+    this.clusterCenters = reuse(clusterCenters, k);
 
     for (int i = 0; i < k; i++) {
       int p = getClusterCenter(i);
@@ -419,11 +966,65 @@ class KMeansPlusPlus {
     return solution;
   }
 
+  // the weighted cost of the solution, each point paying its distance to the
+  // center of its cluster
+  public float getCost() {
+
+    // there are no clusters without points
+    if (n == 0) return 0;
+
+    if (Double.isNaN(cost)) {
+
+      cost = 0;
+
+      for (int i = 0; i < clusterOffsets.length - 1; i++) {
+        for (int l = clusterOffsets[i]; l < clusterOffsets[i + 1]; l++) {
+          int p = clusterMembers[l];
+          cost += weights[p]*metric.d(points[p], points[clusterCenters[i]]);
+        }
+      }
+    }
+
+    return (float)cost;
+  }
+
+  // returns array if it has the given length, otherwise a new one
+  private static int[] reuse(int[] array, int length) {
+    return (array != null && array.length == length) ? array : new int[length];
+  }
+
+  // returns array if it has at least the given length, otherwise a new one
+  private static int[] reuseAtLeast(int[] array, int length) {
+    return (array != null && array.length >= length) ? array : new int[length];
+  }
+
   // get the clusters
   public int[][] getClusters() {
+
+    if (clusters == null) {
+
+      int count = clusterOffsets.length - 1;
+      clusters = new int[count][];
+
+      for (int i = 0; i < count; i++) {
+        clusters[i] = Arrays.copyOfRange(clusterMembers, clusterOffsets[i], clusterOffsets[i + 1]);
+      }
+    }
+
     return clusters;
   }
 
+  // get the start of each cluster in getClusterMembers(), with a final entry
+  // holding the number of points
+  public int[] getClusterOffsets() {
+    return clusterOffsets;
+  }
+
+  // get the points grouped by cluster, in the first n entries
+  public int[] getClusterMembers() {
+    return clusterMembers;
+  }
+
   // get the cluster centers
   public int[] getClusterCenters() {
     return clusterCenters;
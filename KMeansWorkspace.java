@@ -0,0 +1,205 @@
+import java.util.Arrays;
+
+// scratch buffers for KMeansPlusPlus, one per thread and kept between calls so
+// that clustering in a steady state allocates next to nothing. the buffers are
+// only valid until the next KMeansPlusPlus call on the same thread
+class KMeansWorkspace {
+
+  private static final ThreadLocal<KMeansWorkspace> workspaces = ThreadLocal.withInitial(KMeansWorkspace::new);
+
+  // returns the workspace of the calling thread
+  public static KMeansWorkspace get() {
+    return workspaces.get();
+  }
+
+  // per point buffers
+  private float[] dist = new float[0];
+  private int[] assignment = new int[0];
+  private int[] previous = new int[0];
+  private float[] upper = new float[0];
+  private float[] lower = new float[0];
+  private int[] closest = new int[0];
+  private float[] closestDist = new float[0];
+
+  // per center buffers
+  private float[] moves = new float[0];
+  private float[] halfGap = new float[0];
+  private int[] next = new int[0];
+
+  // per chunk buffers of length k
+  private float[][] scans = new float[0][0];
+
+  // scratch of the block nearest center kernel of LpNorm
+  private double[] halfNorms = new double[0];
+  private double[] blockBest = new double[0];
+  private int[] blockCenter = new int[0];
+
+  // scratch of CoresetBFL, used after its approximation has been computed
+  private float[] clusterWeights = new float[0];
+  private float[] coresetDist = new float[0];
+  private float[] prob = new float[0];
+  private int[] drawn = new int[0];
+
+  // per coordinate buffer
+  private float[] center = new float[0];
+
+  // references to the sampled points, never written through
+  private float[][] samples = new float[0][];
+
+  // two sets of centers, so the previous centers survive while the next are written
+  private float[][] centersA = new float[0][0];
+  private float[][] centersB = new float[0][0];
+
+  // tree used for D^2 sampling
+  private FenwickTree tree = new FenwickTree(0);
+
+  // distances to the closest sample, of length at least n and set to infinity
+  public float[] dist(int n) {
+    if (dist.length < n) dist = new float[n];
+    Arrays.fill(dist, 0, n, Float.POSITIVE_INFINITY);
+    return dist;
+  }
+
+  // assignment of points to clusters, of length at least n
+  public int[] assignment(int n) {
+    if (assignment.length < n) assignment = new int[n];
+    return assignment;
+  }
+
+  // copy of the previous assignment, of length at least n
+  public int[] previous(int n) {
+    if (previous.length < n) previous = new int[n];
+    return previous;
+  }
+
+  // upper bounds, of length at least n
+  public float[] upper(int n) {
+    if (upper.length < n) upper = new float[n];
+    return upper;
+  }
+
+  // lower bounds, of length at least n and set to 0
+  public float[] lower(int n) {
+    if (lower.length < n) lower = new float[n];
+    Arrays.fill(lower, 0, n, 0);
+    return lower;
+  }
+
+  // closest candidate of the k-means|| seeding, of length at least n
+  public int[] closest(int n) {
+    if (closest.length < n) closest = new int[n];
+    return closest;
+  }
+
+  // distance to the closest candidate, of length at least n
+  public float[] closestDist(int n) {
+    if (closestDist.length < n) closestDist = new float[n];
+    return closestDist;
+  }
+
+  // how far each center moved, of length at least k
+  public float[] moves(int k) {
+    if (moves.length < k) moves = new float[k];
+    return moves;
+  }
+
+  // half the gap between centers, of length at least k
+  public float[] halfGap(int k) {
+    if (halfGap.length < k) halfGap = new float[k];
+    return halfGap;
+  }
+
+  // insertion points of the counting sort, of length at least k
+  public int[] next(int k) {
+    if (next.length < k) next = new int[k];
+    return next;
+  }
+
+  // one buffer of length at least k for each of the chunks
+  public float[][] scans(int chunks, int k) {
+    if (scans.length < chunks || scans[0].length < k) scans = new float[chunks][k];
+    return scans;
+  }
+
+  // half the squared norm of each center, of length at least k
+  public double[] halfNorms(int k) {
+    if (halfNorms.length < k) halfNorms = new double[k];
+    return halfNorms;
+  }
+
+  // best score of each point of a block, of length at least b
+  public double[] blockBest(int b) {
+    if (blockBest.length < b) blockBest = new double[b];
+    return blockBest;
+  }
+
+  // best center of each point of a block, of length at least b
+  public int[] blockCenter(int b) {
+    if (blockCenter.length < b) blockCenter = new int[b];
+    return blockCenter;
+  }
+
+  // total weight of each cluster, of length at least k and set to 0
+  public float[] clusterWeights(int k) {
+    if (clusterWeights.length < k) clusterWeights = new float[k];
+    Arrays.fill(clusterWeights, 0, k, 0);
+    return clusterWeights;
+  }
+
+  // distance from each point to its center, of length at least n
+  public float[] coresetDist(int n) {
+    if (coresetDist.length < n) coresetDist = new float[n];
+    return coresetDist;
+  }
+
+  // sampling probabilities, of length at least n
+  public float[] prob(int n) {
+    if (prob.length < n) prob = new float[n];
+    return prob;
+  }
+
+  // positions of the samples drawn, of length at least m
+  public int[] drawn(int m) {
+    if (drawn.length < m) drawn = new int[m];
+    return drawn;
+  }
+
+  // a single point, of length exactly d and set to 0
+  public float[] center(int d) {
+    if (center.length != d) center = new float[d];
+    Arrays.fill(center, 0);
+    return center;
+  }
+
+  // an array of k references to points
+  public float[][] samples(int k) {
+    if (samples.length != k) samples = new float[k][];
+    return samples;
+  }
+
+  // a k by d set of centers that is not current
+  public float[][] centers(int k, int d, float[][] current) {
+
+    if (current != centersA) {
+      centersA = resize(centersA, k, d);
+      return centersA;
+    }
+
+    centersB = resize(centersB, k, d);
+    return centersB;
+  }
+
+  // the tree used for D^2 sampling
+  public FenwickTree tree() {
+    return tree;
+  }
+
+  private static float[][] resize(float[][] centers, int k, int d) {
+
+    if (centers.length == k && (k == 0 || centers[0].length == d)) {
+      return centers;
+    }
+
+    return new float[k][d];
+  }
+}
@@ -0,0 +1,222 @@
+import java.util.*;
+
+/*
+
+implementation of the merge and reduce coreset of Har-Peled and Mazumdar 2004
+for insertion only streams, built on the static coreset of Braverman et al.
+
+*/
+
+// merge and reduce tree of coresets, deletions rebuild it from scratch the
+// next time it is clustered
+public class MergeReduce extends DynamicAlgorithm {
+
+  // the points inserted so far, only used to rebuild after a deletion
+  private TreeMap<Integer, float[]> space;
+
+  // true if a point was deleted since the levels were last rebuilt, in which
+  // case the levels are stale and space alone is up to date
+  private boolean dirty;
+
+  // the points that have not been reduced yet, the first count of them
+  private Level buffer;
+  private int count;
+
+  // levels.get(i) is a coreset of 2^i * m points, or null, like the bits of a
+  // binary counter
+  private ArrayList<Level> levels;
+
+  // parameters for clustering
+  private int k;
+
+  private Metric metric;
+
+  // the size of the buffer and of each coreset
+  private int m;
+
+  // reduces the union of two coresets of the same level
+  private CoresetBFL innercore;
+
+  // reduces the union of every level when clustering
+  private CoresetBFL outercore;
+
+  // a weighted set of points, only the references to the points are copied
+  // when sets are merged and reduced
+  private static class Level {
+
+    float[][] points;
+    float[] weights;
+    int[] keys;
+
+    Level(int n) {
+      this.points = new float[n][];
+      this.weights = new float[n];
+      this.keys = new int[n];
+    }
+
+    int size() {
+      return points.length;
+    }
+  }
+
+  public MergeReduce(int k, Metric metric, int m) {
+    this(k, metric, m, new SplittableRandom());
+  }
+
+  public MergeReduce(int k, Metric metric, int m, SplittableRandom rng) {
+    this.k = k;
+    this.metric = metric;
+    this.m = m;
+
+    this.space = new TreeMap<Integer, float[]>();
+    this.levels = new ArrayList<Level>();
+
+    // both coresets reduce inputs larger than m: the innercore merges two
+    // levels of m points, the outercore the union of all levels
+    this.innercore = new CoresetBFL(k, metric, m, KMeansPlusPlus.Seeding.KMEANS_PLUS_PLUS, CoresetBFL.Approximation.FULL, true, rng.split());
+    this.outercore = new CoresetBFL(k, metric, m, KMeansPlusPlus.Seeding.KMEANS_PLUS_PLUS, CoresetBFL.Approximation.FULL, true, rng.split());
+  }
+
+  // insert a point (we only care about unweighted points)
+  public void insert(int key, float[] point) {
+
+    // if this point is already in the tree, do nothing
+    if (space.get(key) != null) return;
+
+    space.put(key, point);
+
+    // the rebuild will add this point along with the rest of space
+    if (dirty) return;
+
+    add(key, point);
+  }
+
+  // add a point to the buffer, and carry it up the levels once it is full
+  private void add(int key, float[] point) {
+
+    if (buffer == null) {
+      buffer = new Level(m);
+    }
+
+    buffer.points[count] = point;
+    buffer.weights[count] = 1;
+    buffer.keys[count] = key;
+    count++;
+
+    if (count < m) return;
+
+    // like incrementing a binary counter, merge full levels until an empty one
+    Level carry = buffer;
+
+    buffer = new Level(m);
+    count = 0;
+
+    int i = 0;
+
+    for (; i < levels.size() && levels.get(i) != null; i++) {
+      carry = reduce(innercore, union(levels.get(i), carry, carry.size()));
+      levels.set(i, null);
+    }
+
+    if (i == levels.size()) {
+      levels.add(carry);
+    }
+    else {
+      levels.set(i, carry);
+    }
+  }
+
+  // delete a point, the levels are rebuilt once when next clustering
+  public void delete(int key) {
+
+    // if this point is not in the tree, do nothing
+    if (space.remove(key) == null) return;
+
+    dirty = true;
+  }
+
+  // rebuild every level from the remaining points
+  private void rebuild() {
+
+    buffer = null;
+    count = 0;
+    levels.clear();
+
+    for (Map.Entry<Integer, float[]> entry : space.entrySet()) {
+      add(entry.getKey(), entry.getValue());
+    }
+
+    dirty = false;
+  }
+
+  // cluster the coreset of every point inserted so far
+  public TreeMap<Integer, Integer> cluster() {
+
+    if (dirty) {
+      rebuild();
+    }
+
+    // collect the buffer and every level
+    Level all = (buffer != null) ? union(null, buffer, count) : null;
+
+    for (Level level : levels) {
+      if (level != null) {
+        all = union(all, level, level.size());
+      }
+    }
+
+    if (all == null) {
+      return new TreeMap<Integer, Integer>();
+    }
+
+    // reduce once more so the static algorithm only sees m points
+    if (all.size() > m) {
+      all = reduce(outercore, all);
+    }
+
+    OnlineKMedian staticAlgo = new OnlineKMedian(k, metric);
+
+    return staticAlgo.cluster(all.points, all.weights, all.keys);
+  }
+
+  // the union of a, which can be null, and the first size points of b
+  private static Level union(Level a, Level b, int size) {
+
+    int first = (a != null) ? a.size() : 0;
+
+    Level level = new Level(first + size);
+
+    if (a != null) {
+      System.arraycopy(a.points, 0, level.points, 0, first);
+      System.arraycopy(a.weights, 0, level.weights, 0, first);
+      System.arraycopy(a.keys, 0, level.keys, 0, first);
+    }
+
+    System.arraycopy(b.points, 0, level.points, first, size);
+    System.arraycopy(b.weights, 0, level.weights, first, size);
+    System.arraycopy(b.keys, 0, level.keys, first, size);
+
+    return level;
+  }
+
+  // a coreset of level computed by core, copied out of core's buffers
+  private Level reduce(CoresetBFL core, Level level) {
+
+    // the size of the coreset is set by m alone
+    core.construct(level.points, level.weights, level.keys, 1.0f/(space.size() + 1), 1);
+
+    int size = core.getSize();
+
+    Level reduced = new Level(size);
+
+    System.arraycopy(core.getPoints(), 0, reduced.points, 0, size);
+    System.arraycopy(core.getWeights(), 0, reduced.weights, 0, size);
+    System.arraycopy(core.getKeys(), 0, reduced.keys, 0, size);
+
+    return reduced;
+  }
+
+  public String name() {
+    return String.valueOf(k) + "_" + String.valueOf(m) + "_MR";
+  }
+}
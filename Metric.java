@@ -1,28 +1,140 @@
 import java.lang.Math;
+import java.util.Arrays;
 
 // implementation of metrics defined on R^n
 abstract class Metric {
 
+  // number of points handled together by the block methods
+  protected static final int BLOCK = 64;
+
   // computes the distance between two points with respect to this metric
   public abstract float d(float[] x, float[] y);
 
+  // whether d(x, z) <= d(x, y) + d(y, z) holds, which lets callers prune searches
+  public boolean satisfiesTriangleInequality() {
+    return true;
+  }
+
+  // whether this is the euclidean distance, up to a constant added to it
+  public boolean isEuclidean() {
+    return false;
+  }
+
+  // whether d(x, y) and d(y, x) are always exactly the same float, which lets
+  // callers evaluate each pair once
+  public boolean isSymmetric() {
+    return false;
+  }
+
+  // computes the distances from x to each of the centers and writes them into out
+  public void d(float[] x, float[][] centers, float[] out) {
+    for (int j = 0; j < centers.length; j++) {
+      out[j] = d(x, centers[j]);
+    }
+  }
+
+  // computes the distances between each point and each center, the distance
+  // d(points[i], centers[j]) is written into out[i*centers.length + j]
+  public void d(float[][] points, float[][] centers, float[] out) {
+
+    int k = centers.length;
+
+    // go through the points in blocks so the centers stay in cache
+    for (int s = 0; s < points.length; s += BLOCK) {
+
+      int t = Math.min(s + BLOCK, points.length);
+
+      for (int j = 0; j < k; j++) {
+        for (int i = s; i < t; i++) {
+          out[i*k + j] = d(points[i], centers[j]);
+        }
+      }
+    }
+  }
+
+  // computes the distance between two points if it is less than bound, otherwise
+  // returns some value that is at least bound, possibly without looking at every
+  // coordinate
+  public float d(float[] x, float[] y, float bound) {
+    return d(x, y);
+  }
+
+  // returns the index of the center closest to x and writes its distance into dist[i]
+  public int nearest(float[] x, float[][] centers, float[] dist, int i) {
+
+    float best = Float.POSITIVE_INFINITY;
+    int l = 0;
+
+    for (int j = 0; j < centers.length; j++) {
+
+      // centers no closer than the best one so far are abandoned early
+      float d = d(x, centers[j], best);
+
+      // ties go to the center with the smallest index
+      if (d < best) {
+        best = d;
+        l = j;
+      }
+    }
+
+    dist[i] = best;
+    return l;
+  }
+
+  // assigns each point to its closest center, writing the index of the center
+  // into assignment[i] and the distance to it into dist[i]
+  public void nearest(float[][] points, float[][] centers, int[] assignment, float[] dist) {
+    nearest(points, 0, points.length, centers, assignment, dist);
+  }
+
+  // as above for the points from index from to index to - 1 only, so callers
+  // can split the points between threads that write into the same arrays
+  public void nearest(float[][] points, int from, int to, float[][] centers, int[] assignment, float[] dist) {
+    for (int i = from; i < to; i++) {
+      assignment[i] = nearest(points[i], centers, dist, i);
+    }
+  }
 }
 
 // implementation of Lp-norm
 class LpNorm extends Metric {
 
+  // value of p used to request the L-infinity norm
+  public static final int INFINITY = Integer.MAX_VALUE;
+
+  // the distance kernels, one is chosen when the norm is created
+  private static final int L1 = 1;
+  private static final int L2 = 2;
+  private static final int LINF = 3;
+  private static final int LP = 4;
+
+  // number of centers scored together in the L2 block kernel
+  private static final int TILE = 16;
+
   private int p;
 
   private float noise;
 
+  private int kernel;
+
   LpNorm(int p, float noise) {
     this.p = p;
     this.noise = noise;
+    this.kernel = kernel(p);
   }
 
   LpNorm(int p) {
     this.p = p;
     this.noise = 0;
+    this.kernel = kernel(p);
+  }
+
+  // choose the kernel used to evaluate distances under this norm
+  private static int kernel(int p) {
+    if (p == 1) return L1;
+    if (p == 2) return L2;
+    if (p == INFINITY) return LINF;
+    return LP;
   }
 
   public float d(float[] x, float[] y) {
@@ -32,13 +144,381 @@ class LpNorm extends Metric {
       return 0;
     }
 
+    float d;
+
+    switch (kernel) {
+      case L1:
+        d = (float)l1(x, y);
+        break;
+      case L2:
+        d = (float)Math.sqrt(l2Squared(x, y));
+        break;
+      case LINF:
+        d = lInf(x, y);
+        break;
+      default:
+        d = (float)Math.pow(lp(x, y, p), 1.0/(double)p);
+    }
+
+    return d + noise;
+  }
+
+  // only a metric for p >= 1
+  public boolean satisfiesTriangleInequality() {
+    return p >= 1;
+  }
+
+  // the noise only shifts every distance by the same amount
+  public boolean isEuclidean() {
+    return kernel == L2;
+  }
+
+  // every kernel only sums or compares |x[i] - y[i]|, which does not depend on
+  // the order of x and y
+  public boolean isSymmetric() {
+    return true;
+  }
+
+  // stops summing coordinates once the partial distance reaches the bound
+  public float d(float[] x, float[] y, float bound) {
+
+    // ensure vectors have same dimension
+    if (x.length != y.length) {
+      return 0;
+    }
+
+    // the bound on the distance before the noise is added
+    double b = bound - noise;
+
+    if (b <= 0) {
+      return Float.POSITIVE_INFINITY;
+    }
+
+    // the kernels return their limit when they stop early
+    double d;
+
+    switch (kernel) {
+      case L1:
+        d = l1(x, y, b);
+        if (d >= b) return Float.POSITIVE_INFINITY;
+        break;
+      case L2:
+        d = l2Squared(x, y, b*b);
+        if (d >= b*b) return Float.POSITIVE_INFINITY;
+        d = Math.sqrt(d);
+        break;
+      case LINF:
+        d = lInf(x, y, (float)b);
+        if (d >= (float)b) return Float.POSITIVE_INFINITY;
+        break;
+      default:
+        double limit = Math.pow(b, p);
+        d = lp(x, y, p, limit);
+        if (d >= limit) return Float.POSITIVE_INFINITY;
+        d = Math.pow(d, 1.0/(double)p);
+    }
+
+    return (float)d + noise;
+  }
+
+  // under L2 compare squared distances and only take the root of the closest
+  public int nearest(float[] x, float[][] centers, float[] dist, int i) {
+
+    if (kernel != L2) {
+      return super.nearest(x, centers, dist, i);
+    }
+
+    double best = Double.POSITIVE_INFINITY;
+    int l = 0;
+
+    for (int j = 0; j < centers.length; j++) {
+
+      double d = l2Squared(x, centers[j], best);
+
+      if (d < best) {
+        best = d;
+        l = j;
+      }
+    }
+
+    dist[i] = (float)Math.sqrt(best) + noise;
+    return l;
+  }
+
+  // under L2 rank the centers by ||c||^2/2 - x.c, which gives the same order as
+  // ||x - c||^2 but is a dot product against precomputed norms
+  public void nearest(float[][] points, int from, int to, float[][] centers, int[] assignment, float[] dist) {
+
+    int k = centers.length;
+
+    if (kernel != L2 || k == 0) {
+      super.nearest(points, from, to, centers, assignment, dist);
+      return;
+    }
+
+    // the kernel never forks, so the scratch of the calling thread is free
+    KMeansWorkspace workspace = KMeansWorkspace.get();
+
+    // half of the squared norm of each center
+    double[] halfNorms = workspace.halfNorms(k);
+
+    for (int j = 0; j < k; j++) {
+      halfNorms[j] = 0.5*dot(centers[j], centers[j]);
+    }
+
+    // best score and center found so far for the points in the current block
+    double[] best = workspace.blockBest(BLOCK);
+    int[] l = workspace.blockCenter(BLOCK);
+
+    for (int s = from; s < to; s += BLOCK) {
+
+      int t = Math.min(s + BLOCK, to);
+
+      Arrays.fill(best, Double.POSITIVE_INFINITY);
+      Arrays.fill(l, 0);
+
+      // go through the centers in tiles so a tile stays in cache for the whole block
+      for (int a = 0; a < k; a += TILE) {
+
+        int b = Math.min(a + TILE, k);
+
+        for (int i = s; i < t; i++) {
+
+          float[] x = points[i];
+          int j = a;
+
+          // score four centers at a time against the same point
+          for (; j + 3 < b; j += 4) {
+
+            float[] c0 = centers[j];
+            float[] c1 = centers[j + 1];
+            float[] c2 = centers[j + 2];
+            float[] c3 = centers[j + 3];
+
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+            for (int q = 0; q < x.length; q++) {
+              double v = x[q];
+              s0 += v*c0[q];
+              s1 += v*c1[q];
+              s2 += v*c2[q];
+              s3 += v*c3[q];
+            }
+
+            s0 = halfNorms[j] - s0;
+            s1 = halfNorms[j + 1] - s1;
+            s2 = halfNorms[j + 2] - s2;
+            s3 = halfNorms[j + 3] - s3;
+
+            // ties go to the center with the smallest index
+            if (s0 < best[i - s]) { best[i - s] = s0; l[i - s] = j; }
+            if (s1 < best[i - s]) { best[i - s] = s1; l[i - s] = j + 1; }
+            if (s2 < best[i - s]) { best[i - s] = s2; l[i - s] = j + 2; }
+            if (s3 < best[i - s]) { best[i - s] = s3; l[i - s] = j + 3; }
+          }
+
+          for (; j < b; j++) {
+
+            double s0 = halfNorms[j] - dot(x, centers[j]);
+
+            if (s0 < best[i - s]) {
+              best[i - s] = s0;
+              l[i - s] = j;
+            }
+          }
+        }
+      }
+
+      // only the distances that are stored are computed exactly
+      for (int i = s; i < t; i++) {
+        assignment[i] = l[i - s];
+        dist[i] = (float)Math.sqrt(l2Squared(points[i], centers[l[i - s]])) + noise;
+      }
+    }
+  }
+
+  // KERNELS
+
+  // the loops below are unrolled with independent accumulators so the JIT can
+  // keep several lanes in flight, and avoid Math.pow in the common cases
+
+  // sum of absolute differences
+  private static double l1(float[] x, float[] y) {
+
+    int n = x.length;
+    int i = 0;
+
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+    for (; i + 3 < n; i += 4) {
+      s0 += Math.abs(x[i] - y[i]);
+      s1 += Math.abs(x[i + 1] - y[i + 1]);
+      s2 += Math.abs(x[i + 2] - y[i + 2]);
+      s3 += Math.abs(x[i + 3] - y[i + 3]);
+    }
+
+    for (; i < n; i++) {
+      s0 += Math.abs(x[i] - y[i]);
+    }
+
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // sum of absolute differences, stops once it reaches limit
+  private static double l1(float[] x, float[] y, double limit) {
+
+    int n = x.length;
+    int i = 0;
+
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+    for (; i + 3 < n; i += 4) {
+      s0 += Math.abs(x[i] - y[i]);
+      s1 += Math.abs(x[i + 1] - y[i + 1]);
+      s2 += Math.abs(x[i + 2] - y[i + 2]);
+      s3 += Math.abs(x[i + 3] - y[i + 3]);
+      if ((s0 + s1) + (s2 + s3) >= limit) return limit;
+    }
+
+    for (; i < n; i++) {
+      s0 += Math.abs(x[i] - y[i]);
+    }
+
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // sum of squared differences
+  private static double l2Squared(float[] x, float[] y) {
+
+    int n = x.length;
+    int i = 0;
+
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+    for (; i + 3 < n; i += 4) {
+      double d0 = x[i] - y[i];
+      double d1 = x[i + 1] - y[i + 1];
+      double d2 = x[i + 2] - y[i + 2];
+      double d3 = x[i + 3] - y[i + 3];
+      s0 += d0*d0;
+      s1 += d1*d1;
+      s2 += d2*d2;
+      s3 += d3*d3;
+    }
+
+    for (; i < n; i++) {
+      double d0 = x[i] - y[i];
+      s0 += d0*d0;
+    }
+
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // sum of squared differences, stops once it reaches limit
+  private static double l2Squared(float[] x, float[] y, double limit) {
+
+    int n = x.length;
+    int i = 0;
+
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+    for (; i + 3 < n; i += 4) {
+      double d0 = x[i] - y[i];
+      double d1 = x[i + 1] - y[i + 1];
+      double d2 = x[i + 2] - y[i + 2];
+      double d3 = x[i + 3] - y[i + 3];
+      s0 += d0*d0;
+      s1 += d1*d1;
+      s2 += d2*d2;
+      s3 += d3*d3;
+      if ((s0 + s1) + (s2 + s3) >= limit) return limit;
+    }
+
+    for (; i < n; i++) {
+      double d0 = x[i] - y[i];
+      s0 += d0*d0;
+    }
+
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // inner product
+  private static double dot(float[] x, float[] y) {
+
+    int n = x.length;
+    int i = 0;
+
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+    for (; i + 3 < n; i += 4) {
+      s0 += (double)x[i]*y[i];
+      s1 += (double)x[i + 1]*y[i + 1];
+      s2 += (double)x[i + 2]*y[i + 2];
+      s3 += (double)x[i + 3]*y[i + 3];
+    }
+
+    for (; i < n; i++) {
+      s0 += (double)x[i]*y[i];
+    }
+
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // largest absolute difference
+  private static float lInf(float[] x, float[] y) {
+
+    int n = x.length;
+    int i = 0;
+
+    float m0 = 0, m1 = 0, m2 = 0, m3 = 0;
+
+    for (; i + 3 < n; i += 4) {
+      m0 = Math.max(m0, Math.abs(x[i] - y[i]));
+      m1 = Math.max(m1, Math.abs(x[i + 1] - y[i + 1]));
+      m2 = Math.max(m2, Math.abs(x[i + 2] - y[i + 2]));
+      m3 = Math.max(m3, Math.abs(x[i + 3] - y[i + 3]));
+    }
+
+    for (; i < n; i++) {
+      m0 = Math.max(m0, Math.abs(x[i] - y[i]));
+    }
+
+    return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+  }
+
+  // largest absolute difference, stops once it reaches limit
+  private static float lInf(float[] x, float[] y, float limit) {
+
+    float m = 0;
+
+    for (int i = 0; i < x.length; i++) {
+      m = Math.max(m, Math.abs(x[i] - y[i]));
+      if (m >= limit) return limit;
+    }
+
+    return m;
+  }
+
+  // sum of p-th powers of absolute differences, stops once it reaches limit
+  private static double lp(float[] x, float[] y, int p, double limit) {
+
     double sum = 0;
     for (int i = 0; i < x.length; i++) {
       sum += Math.pow(Math.abs(x[i] - y[i]), p);
+      if (sum >= limit) return limit;
     }
 
-    float d = (float)Math.pow(sum, 1.0/(double)p);
+    return sum;
+  }
 
-    return d + noise;
+  // sum of p-th powers of absolute differences (scalar fallback)
+  private static double lp(float[] x, float[] y, int p) {
+
+    double sum = 0;
+    for (int i = 0; i < x.length; i++) {
+      sum += Math.pow(Math.abs(x[i] - y[i]), p);
+    }
+
+    return sum;
   }
 }
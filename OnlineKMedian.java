@@ -34,6 +34,9 @@ public class OnlineKMedian {
   // the cost of the clustering found
   private float clusteringCost;
 
+  // the Lloyd iterations run on the clustering found
+  private KMeansPlusPlus kmeanspp;
+
   // auxiliary data structures used for solving the problem
 
   // an array of the keys corresponding to the points in the input
@@ -69,11 +72,45 @@ public class OnlineKMedian {
   private float[][] ballValueAux1;
   private float[][] ballValueAux2;
 
+  // the number of closest points kept in each of the arrays above, 0 keeps
+  // every point. balls that reach past the last point kept are evaluated
+  // by going through every point instead
+  private int neighbors;
+
+  // the number of points kept in each row, the arrays can be longer
+  private int rowLength;
+
+  // the distance from each point to the point furthest from it
+  private float[] furthestDist;
+
+  // the total weight of the points, and the total of their distances from
+  // each point weighted by their weights, for balls that cover every point
+  private float totalWeight;
+  private float[] totalWeightedDist;
+
+  // number of rows of the tables built by each task of the fork join pool
+  private static final int ROW_GRAIN = 32;
+
+  // side of the square tiles of pairs whose distances are computed together
+  private static final int DIST_TILE = 64;
+
+  // the full row of one point, loaded when a ball reaches past its kept points
+  private int fullRowOwner = -1;
+  private int[] fullRow;
+  private float[] fullRowDist;
+
   // define the parameters
   public OnlineKMedian(int k, Metric metric) {
+    this(k, metric, 0);
+  }
+
+  // only keep the neighbors closest points to each point, which bounds the
+  // memory used to O(n*neighbors) rather than O(n^2)
+  public OnlineKMedian(int k, Metric metric, int neighbors) {
 
     this.k = k;
     this.metric = metric;
+    this.neighbors = neighbors;
 
     this.alpha = 2 + (float)Math.sqrt(3);
     this.beta = (this.alpha - 1)/(this.alpha - 2);
@@ -108,12 +145,13 @@ public class OnlineKMedian {
 
     // create the auxiliary data structures
     setUpDataStructures();
+    buildTables();
 
     // get the clustering
     TreeMap<Integer, Integer> solution = cluster();
 
     // // perform 2 iterations of Lloyd's and return
-    KMeansPlusPlus kmeanspp = new KMeansPlusPlus(k, metric);
+    kmeanspp = new KMeansPlusPlus(k, metric);
     return kmeanspp.cluster(points, weights, solution);
   }
 
@@ -125,6 +163,7 @@ public class OnlineKMedian {
 
     // create the auxiliary data structures
     setUpDataStructures(points, weights, keys);
+    buildTables();
 
     // get the clustering
     TreeMap<Integer, Integer> solution = cluster();
@@ -138,7 +177,38 @@ public class OnlineKMedian {
     }
 
     // // perform 2 iterations of Lloyd's and return
-    KMeansPlusPlus kmeanspp = new KMeansPlusPlus(k, metric);
+    kmeanspp = new KMeansPlusPlus(k, metric);
+    return kmeanspp.cluster(this.points, this.weights, solution);
+  }
+
+  // given a weighted metric space, find a k clustering of the points using the
+  // sorted rows kept by session rather than building them. the points are
+  // indexed by their slots in the session, and every row holds every point
+  TreeMap<Integer, Integer> cluster(TreeMap<Integer, float[]> points, TreeMap<Integer, Float> weights, OnlineKMedianSession session) {
+
+    // save the input
+    this.points = points;
+    this.weights = weights;
+
+    // the number of points in the input
+    this.n = session.size();
+
+    // take the tables of the session
+    sortedPointsArr = session.sortedPoints();
+    sortedPointsDistArr = session.sortedDist();
+    ballValueAux1 = session.ballValueAux1();
+    ballValueAux2 = session.ballValueAux2();
+    furthestDist = session.furthestDist();
+    rowLength = n;
+
+    // create the rest of the auxiliary data structures
+    setUpDataStructures(session.points(), session.weights(), session.keys());
+
+    // get the clustering
+    TreeMap<Integer, Integer> solution = cluster();
+
+    // // perform 2 iterations of Lloyd's and return
+    kmeanspp = new KMeansPlusPlus(k, metric);
     return kmeanspp.cluster(this.points, this.weights, solution);
   }
 
@@ -201,8 +271,7 @@ public class OnlineKMedian {
     float r = ball.r;
 
     // find the index of the last point that is within beta*r of i
-    int j = Arrays.binarySearch(sortedPointsDistArr[i], beta*r);
-    if (j < 0) j = -j-2;
+    int j = lastWithin(i, beta*r);
 
     // while we have more than one child (j > 0) find a max value child
     while (j > 0) {
@@ -214,8 +283,7 @@ public class OnlineKMedian {
       r = ball.r;
 
       // find the index of the last point that is within beta*r of i
-      j = Arrays.binarySearch(sortedPointsDistArr[i], beta*r);
-      if (j < 0) j = -j-2;
+      j = lastWithin(i, beta*r);
 
       // we might have duplicate ponts
       if (r == 0.0f && j > 0)
@@ -237,11 +305,12 @@ public class OnlineKMedian {
 
     for (int j = 0; j <= l; j++) {
 
-      float value = ballValue(sortedPointsArr[i][j], r/alpha);
+      int child = neighbor(i, j);
+      float value = ballValue(child, r/alpha);
 
       if (value >= bestValue) {
         bestValue = value;
-        ball = new Pair(sortedPointsArr[i][j], r/alpha);
+        ball = new Pair(child, r/alpha);
       }
     }
 
@@ -257,13 +326,15 @@ public class OnlineKMedian {
     // the value of ball
     float bestValue = -Float.POSITIVE_INFINITY;
 
+    // the queue is not iterated in index order, so ties go to the larger key,
+    // which keeps the result independent of how the indices were laid out
     for (Integer j : nonMedians) {
 
       float r = isolated(j);
 
       float value = ballValue(j, r);
 
-      if (value >= bestValue) {
+      if (value > bestValue || (value == bestValue && keysArr[j] > keysArr[ball.l])) {
         bestValue = value;
         ball = new Pair(j, r);
       }
@@ -277,7 +348,7 @@ public class OnlineKMedian {
 
     // if there are no medians, return distance of furthest point
     if (found == 0)
-      return sortedPointsDistArr[i][n-1];
+      return furthestDist[i];
 
     return distFromMedians[i]/gamma;
   }
@@ -285,8 +356,13 @@ public class OnlineKMedian {
   // find the value of the ball with center
   private float ballValue(int i, float r) {
 
+    // the ball reaches past the points kept for i
+    if (truncated(i, r)) {
+      return fullBallValue(i, r);
+    }
+
     // find the furthest point from point i that is not more than r away
-    int j = Arrays.binarySearch(sortedPointsDistArr[i], r);
+    int j = Arrays.binarySearch(sortedPointsDistArr[i], 0, rowLength, r);
 
     if (j < 0) j = -j-2;
 
@@ -296,6 +372,125 @@ public class OnlineKMedian {
     return r*ballValueAux1[i][j] - ballValueAux2[i][j];
   }
 
+  // whether points not kept for i can be within r of it
+  private boolean truncated(int i, float r) {
+    return rowLength < n && r >= sortedPointsDistArr[i][rowLength-1];
+  }
+
+  // the value of the ball found by going through every point
+  private float fullBallValue(int i, float r) {
+
+    // the ball covers every point
+    if (r >= furthestDist[i]) {
+      return r*totalWeight - totalWeightedDist[i];
+    }
+
+    float weight = 0;
+    float weightedDist = 0;
+
+    for (int j = 0; j < n; j++) {
+
+      float d = metric.d(pointsArr[i], pointsArr[j]);
+
+      if (d <= r) {
+        weight += weightsArr[j];
+        weightedDist += d*weightsArr[j];
+      }
+    }
+
+    return r*weight - weightedDist;
+  }
+
+  // index in the sorted row of i of the last point within r of i, loading
+  // the full row of i if the points kept for it do not reach r
+  private int lastWithin(int i, float r) {
+
+    float[] dist = sortedPointsDistArr[i];
+    int length = rowLength;
+
+    if (truncated(i, r)) {
+      loadFullRow(i);
+      dist = fullRowDist;
+      length = n;
+    }
+
+    int j = Arrays.binarySearch(dist, 0, length, r);
+    if (j < 0) j = -j-2;
+
+    return j;
+  }
+
+  // the j-th closest point to i, which is only past the points kept for i
+  // if lastWithin(i, r) just loaded the full row of i
+  private int neighbor(int i, int j) {
+
+    if (j < rowLength) {
+      return sortedPointsArr[i][j];
+    }
+
+    return fullRow[j];
+  }
+
+  // sorts every point by its distance from i into fullRow and fullRowDist
+  private void loadFullRow(int i) {
+
+    if (fullRowOwner == i) return;
+
+    fullRow = new int[n];
+    fullRowDist = new float[n];
+
+    sortRow(i, fullRow, fullRowDist, n, new long[n], false);
+
+    fullRowOwner = i;
+  }
+
+  // writes the l closest points to i and their distances into row and rowDist,
+  // sets totalWeightedDist[i], and returns the distance from i to the furthest
+  // point. sortingArr is scratch space of length n, and rowDist can hold the
+  // distances from i to each point on entry instead of them being computed here
+  private float sortRow(int i, int[] row, float[] rowDist, int l, long[] sortingArr, boolean computed) {
+
+    float weightedDist = 0;
+
+    // pack the distance from i into the high half and the index into the low
+    // half, so sorting the longs orders by distance and then by index
+    for (int j = 0; j < n; j++) {
+      float d = computed ? rowDist[j] : metric.d(pointsArr[i], pointsArr[j]);
+      sortingArr[j] = ((long)sortableBits(d) << 32) | j;
+
+      weightedDist += d*weightsArr[j];
+    }
+
+    totalWeightedDist[i] = weightedDist;
+
+    Arrays.sort(sortingArr);
+
+    for (int j = 0; j < l; j++) {
+      row[j] = (int)sortingArr[j];
+      rowDist[j] = unpackDist(sortingArr[j]);
+    }
+
+    return unpackDist(sortingArr[n-1]);
+  }
+
+  // the bits of d as an int with the same order as d, negative values included
+  static int sortableBits(float d) {
+
+    // adding 0 turns -0 into 0
+    int bits = Float.floatToIntBits(d + 0.0f);
+
+    return bits ^ ((bits >> 31) & 0x7fffffff);
+  }
+
+  // the distance packed into the high half of a sorted entry
+  static float unpackDist(long entry) {
+
+    // sortableBits is its own inverse
+    int bits = (int)(entry >> 32);
+
+    return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7fffffff));
+  }
+
   private void setUpDataStructures() {
     setUpDataStructures(null, null, null);
   }
@@ -349,45 +544,95 @@ public class OnlineKMedian {
     // store distances of points from medians
     distFromMedians = new float[n];
     Arrays.fill(distFromMedians, Float.POSITIVE_INFINITY);
+  }
 
-    // create a 2D array of points sorted by distance from each other
-    sortedPointsArr = new int[n][n];
-    sortedPointsDistArr = new float[n][n];
+  // build the sorted rows of every point and the auxiliary arrays for the
+  // values of balls
+  private void buildTables() {
 
-    Pair[] sortingArr = new Pair[n];
+    // end if the input is empty
+    if (n <= 0) return;
 
+    // the number of closest points kept for each point
+    int l = (neighbors > 0) ? Math.min(neighbors, n) : n;
+    rowLength = l;
+
+    fullRowOwner = -1;
+    furthestDist = new float[n];
+
+    totalWeight = 0;
     for (int i = 0; i < n; i++) {
+      totalWeight += weightsArr[i];
+    }
 
-      // place the indices of the points and their distances from i into an array
-      for (int j = 0; j < n; j++) {
-        sortingArr[j] = new Pair(j, metric.d(pointsArr[i], pointsArr[j]));
-      }
+    totalWeightedDist = new float[n];
+
+    // create a 2D array of points sorted by distance from each other
+    sortedPointsArr = new int[n][l];
+    sortedPointsDistArr = new float[n][l];
 
-      Arrays.sort(sortingArr);
+    ballValueAux1 = new float[n][l];
+    ballValueAux2 = new float[n][l];
 
-      for (int j = 0; j < n; j++) {
-        Pair p = sortingArr[j];
-        sortedPointsArr[i][j] = p.l;
-        sortedPointsDistArr[i][j] = p.r;
-      }
+    // when every row is kept, compute each distance once and fill both rows
+    boolean computed = l == n && metric.isSymmetric();
+
+    if (computed) {
+      pairwiseDistances(sortedPointsDistArr);
     }
 
-    ballValueAux1 = new float[n][n];
-    ballValueAux2 = new float[n][n];
+    // the rows are independent, so they are built on the fork join pool, each
+    // chunk of rows reusing its own scratch space
+    ParallelRange.run(n, ROW_GRAIN, (chunk, s, t) -> {
 
-    // compute the auxiliary information to enable fast ball value computations
-    for (int i = 0; i < n; i++) {
-      ballValueAux1[i][0] = weightsArr[sortedPointsArr[i][0]];
-      ballValueAux2[i][0] = sortedPointsDistArr[i][0]*weightsArr[sortedPointsArr[i][0]];
-      for (int j = 1; j < n; j++) {
-        ballValueAux1[i][j] = ballValueAux1[i][j-1] + weightsArr[sortedPointsArr[i][j]];
-        ballValueAux2[i][j] = ballValueAux2[i][j-1] + sortedPointsDistArr[i][j]*weightsArr[sortedPointsArr[i][j]];
+      long[] sortingArr = new long[n];
+
+      for (int i = s; i < t; i++) {
+
+        // the furthest point might not be kept
+        furthestDist[i] = sortRow(i, sortedPointsArr[i], sortedPointsDistArr[i], l, sortingArr, computed);
+
+        // compute the auxiliary information to enable fast ball value computations
+        ballValueAux1[i][0] = weightsArr[sortedPointsArr[i][0]];
+        ballValueAux2[i][0] = sortedPointsDistArr[i][0]*weightsArr[sortedPointsArr[i][0]];
+        for (int j = 1; j < l; j++) {
+          ballValueAux1[i][j] = ballValueAux1[i][j-1] + weightsArr[sortedPointsArr[i][j]];
+          ballValueAux2[i][j] = ballValueAux2[i][j-1] + sortedPointsDistArr[i][j]*weightsArr[sortedPointsArr[i][j]];
+        }
       }
-    }
+    });
   }
 
-  // returns the cost of the clustering // WILL NOT WORK AFTER NEW UPDATE
-  // public float cost() {
-  //   return clusteringCost;
-  // }
+  // writes d(pointsArr[i], pointsArr[j]) into dist[i][j] and dist[j][i], going
+  // through the pairs with i <= j in square tiles so both tiles stay in cache
+  private void pairwiseDistances(float[][] dist) {
+
+    int tiles = (n + DIST_TILE - 1)/DIST_TILE;
+
+    // each task takes one row of tiles, so no two tasks write the same entry
+    ParallelRange.run(tiles, 1, (chunk, s, t) -> {
+
+      int a = s*DIST_TILE;
+      int aEnd = Math.min(a + DIST_TILE, n);
+
+      for (int b = a; b < n; b += DIST_TILE) {
+
+        int bEnd = Math.min(b + DIST_TILE, n);
+
+        for (int i = a; i < aEnd; i++) {
+          for (int j = Math.max(b, i); j < bEnd; j++) {
+            float d = metric.d(pointsArr[i], pointsArr[j]);
+            dist[i][j] = d;
+            dist[j][i] = d;
+          }
+        }
+      }
+    });
+  }
+
+  // returns the weighted cost of the last clustering returned, after the
+  // Lloyd's iterations
+  public float cost() {
+    return kmeanspp.getCost();
+  }
 }
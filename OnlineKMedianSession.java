@@ -0,0 +1,596 @@
+import java.util.*;
+
+/*
+
+the tables of OnlineKMedian kept from one query to the next, for when the
+instance only changes by a few points between queries, like the coreset of
+DynamicMP does between two calls to cluster
+
+*/
+
+class OnlineKMedianSession {
+
+  // parameter for k clustering
+  private int k;
+
+  // metric used to evaluate distances
+  private Metric metric;
+
+  // the number of points of the last query, and the number of slots kept for them
+  private int n;
+  private int capacity;
+
+  // the key, point and weight held in each slot, slots 0 to n - 1 are in use.
+  // a point keeps its slot until it leaves, unless a slot below it frees up
+  private int[] slotKey;
+  private float[][] slotPoint;
+  private float[] slotWeight;
+
+  // the slot of each key
+  private HashMap<Integer, Integer> slots;
+
+  // the tables handed to OnlineKMedian, by slot. each row has room for
+  // capacity points and holds the first n of them, sorted by their distance
+  // from the slot's point and then by key
+  private int[][] sortedPointsArr;
+  private float[][] sortedPointsDistArr;
+  private float[][] ballValueAux1;
+  private float[][] ballValueAux2;
+  private float[] furthestDist;
+
+  // the new slot of each old slot while the slots are being moved
+  private int[] moves;
+
+  // the tail of a row being merged, one for each chunk of rows
+  private int[][] tailSlots;
+  private float[][] tailDist;
+
+  // number of rows updated by each task of the fork join pool
+  private static final int ROW_GRAIN = 32;
+
+  OnlineKMedianSession(int k, Metric metric) {
+    this.k = k;
+    this.metric = metric;
+
+    this.slots = new HashMap<Integer, Integer>();
+
+    grow(0);
+  }
+
+  // find a k clustering of the weighted points, as OnlineKMedian does, only
+  // updating the rows of the last query. a key that now holds another point
+  // (not the same float[]) is handled as having left and arrived again
+  public TreeMap<Integer, Integer> cluster(TreeMap<Integer, float[]> points, TreeMap<Integer, Float> weights) {
+
+    update(points, weights);
+
+    OnlineKMedian staticAlgo = new OnlineKMedian(k, metric);
+
+    return staticAlgo.cluster(points, weights, this);
+  }
+
+  // the points of the last query, by slot
+  int size() {
+    return n;
+  }
+
+  int[] keys() {
+    return slotKey;
+  }
+
+  float[][] points() {
+    return slotPoint;
+  }
+
+  float[] weights() {
+    return slotWeight;
+  }
+
+  // the tables of the last query, by slot
+  int[][] sortedPoints() {
+    return sortedPointsArr;
+  }
+
+  float[][] sortedDist() {
+    return sortedPointsDistArr;
+  }
+
+  float[][] ballValueAux1() {
+    return ballValueAux1;
+  }
+
+  float[][] ballValueAux2() {
+    return ballValueAux2;
+  }
+
+  float[] furthestDist() {
+    return furthestDist;
+  }
+
+  // patch the rows of the last query into those of next
+  private void update(TreeMap<Integer, float[]> next, TreeMap<Integer, Float> nextWeights) {
+
+    // the slots of the points that left, in increasing order
+    ArrayList<Integer> left = new ArrayList<Integer>();
+
+    for (int s = 0; s < n; s++) {
+      if (next.get(slotKey[s]) != slotPoint[s]) {
+        left.add(s);
+      }
+    }
+
+    // the keys of the points that arrived, in increasing order
+    ArrayList<Integer> arrived = new ArrayList<Integer>();
+
+    for (Map.Entry<Integer, float[]> entry : next.entrySet()) {
+      Integer s = slots.get(entry.getKey());
+      if (s == null || slotPoint[s] != entry.getValue()) {
+        arrived.add(entry.getKey());
+      }
+    }
+
+    int r = left.size();
+    int a = arrived.size();
+    int m = n - r + a;
+
+    if (m > capacity) {
+      grow(m);
+    }
+
+    // the points that left free their slots. the points that arrived take the
+    // free slots below m, and points in slots m and above move into the rest
+    int[] free = new int[a + Math.max(0, r - a)];
+    int f = 0;
+
+    for (int s : left) {
+      if (s < m) free[f++] = s;
+    }
+
+    for (int s = n; s < m; s++) {
+      free[f++] = s;
+    }
+
+    int[] arrivedSlot = Arrays.copyOf(free, a);
+
+    for (int s = 0; s < n; s++) {
+      moves[s] = s;
+    }
+
+    for (int s : left) {
+      moves[s] = -1;
+    }
+
+    // the old and new slots of the points that move
+    ArrayList<Integer> movedFrom = new ArrayList<Integer>();
+
+    for (int s = m; s < n; s++) {
+      if (moves[s] >= 0) {
+        moves[s] = free[a + movedFrom.size()];
+        movedFrom.add(s);
+      }
+    }
+
+    // the slots as they were, the rows are still written in terms of them
+    int[] oldKey = Arrays.copyOf(slotKey, n);
+    float[][] oldPoint = Arrays.copyOf(slotPoint, n);
+
+    for (int s : left) {
+      slots.remove(oldKey[s]);
+    }
+
+    for (int s : movedFrom) {
+      slotKey[moves[s]] = oldKey[s];
+      slotPoint[moves[s]] = oldPoint[s];
+      slots.put(oldKey[s], moves[s]);
+    }
+
+    for (int i = 0; i < a; i++) {
+      slotKey[arrivedSlot[i]] = arrived.get(i);
+      slotPoint[arrivedSlot[i]] = next.get(arrived.get(i));
+      slots.put(arrived.get(i), arrivedSlot[i]);
+    }
+
+    for (int s = m; s < n; s++) {
+      slotPoint[s] = null;
+    }
+
+    // the new slots of the points that stayed but changed weight
+    ArrayList<Integer> reweighted = new ArrayList<Integer>();
+
+    float[] oldWeight = Arrays.copyOf(slotWeight, n);
+
+    for (int s = 0; s < n; s++) {
+      if (moves[s] >= 0 && nextWeights.get(oldKey[s]) != oldWeight[s]) {
+        reweighted.add(moves[s]);
+      }
+    }
+
+    for (int s = 0; s < m; s++) {
+      slotWeight[s] = nextWeights.get(slotKey[s]);
+    }
+
+    if (r == 0 && a == 0 && reweighted.isEmpty()) {
+      n = m;
+      return;
+    }
+
+    // give each row to its new slot, the rows of the points that left are
+    // reused for the points that arrived
+    moveRows(left, arrivedSlot, m);
+
+    // the rows of the points that arrived are sorted from scratch, keeping the
+    // distances to use them again for the rows of the points that stayed
+    float[][] arrivedDist = new float[a][m];
+
+    ParallelRange.run(a, ROW_GRAIN, (chunk, s, t) -> {
+
+      long[] entries = new long[m];
+
+      for (int i = s; i < t; i++) {
+        sortRow(arrivedSlot[i], arrivedDist[i], entries, m);
+      }
+    });
+
+    // the rows of the points that stayed are patched in place
+    int[] stayed = new int[n - r];
+    int q = 0;
+
+    for (int s = 0; s < n; s++) {
+      if (moves[s] >= 0) stayed[q++] = s;
+    }
+
+    int[] leftArr = toArray(left);
+    int[] movedArr = toArray(movedFrom);
+    int[] reweightedArr = toArray(reweighted);
+
+    int chunks = ParallelRange.chunks(stayed.length, ROW_GRAIN);
+
+    if (tailSlots.length < chunks) {
+      tailSlots = new int[chunks][];
+      tailDist = new float[chunks][];
+    }
+
+    ParallelRange.run(stayed.length, ROW_GRAIN, (chunk, s, t) -> {
+
+      if (tailSlots[chunk] == null || tailSlots[chunk].length < capacity) {
+        tailSlots[chunk] = new int[capacity];
+        tailDist[chunk] = new float[capacity];
+      }
+
+      int[] removals = new int[r];
+      long[] entries = new long[a];
+
+      for (int i = s; i < t; i++) {
+        patchRow(stayed[i], m, oldKey, oldPoint, leftArr, arrivedSlot, arrivedDist, movedArr, reweightedArr,
+          removals, entries, tailSlots[chunk], tailDist[chunk]);
+      }
+    });
+
+    n = m;
+
+    // give back the room of a much larger instance
+    if (capacity > 4*(m + m/4 + 16)) {
+      grow(m);
+    }
+  }
+
+  // sorts every point of the new query by its distance from the point in slot
+  // i into the row of i, writing the distances by slot into dist
+  private void sortRow(int i, float[] dist, long[] entries, int m) {
+
+    int[] row = sortedPointsArr[i];
+    float[] rowDist = sortedPointsDistArr[i];
+
+    // sort by distance and then by slot, then put the points at the same
+    // distance in order of their keys
+    for (int j = 0; j < m; j++) {
+      dist[j] = metric.d(slotPoint[i], slotPoint[j]);
+      entries[j] = ((long)OnlineKMedian.sortableBits(dist[j]) << 32) | j;
+    }
+
+    Arrays.sort(entries, 0, m);
+
+    for (int j = 0; j < m; j++) {
+      row[j] = (int)entries[j];
+      rowDist[j] = OnlineKMedian.unpackDist(entries[j]);
+    }
+
+    for (int j = 1; j < m; j++) {
+
+      int slot = row[j];
+      int l = j - 1;
+
+      while (l >= 0 && rowDist[l] == rowDist[j] && slotKey[row[l]] > slotKey[slot]) {
+        row[l + 1] = row[l];
+        l--;
+      }
+
+      row[l + 1] = slot;
+    }
+
+    prefixSums(i, 0, m);
+  }
+
+  // updates the row of the point that was in slot s: removes the points that
+  // left, renames the points that moved, merges in the points that arrived and
+  // recomputes the prefix sums from the first position that changed
+  private void patchRow(int s, int m, int[] oldKey, float[][] oldPoint, int[] left, int[] arrivedSlot,
+      float[][] arrivedDist, int[] moved, int[] reweighted, int[] removals, long[] entries, int[] tail, float[] tailD) {
+
+    int i = moves[s];
+
+    int[] row = sortedPointsArr[i];
+    float[] rowDist = sortedPointsDistArr[i];
+
+    float[] point = slotPoint[i];
+
+    // the positions of the points that left, the distances are computed again
+    // to find them by binary search
+    for (int j = 0; j < left.length; j++) {
+      removals[j] = find(row, rowDist, n, metric.d(point, oldPoint[left[j]]), left[j]);
+    }
+
+    Arrays.sort(removals);
+
+    // the points that arrived in order of distance, and then of key since they
+    // are in order of key already
+    for (int j = 0; j < arrivedSlot.length; j++) {
+      float d = metric.isSymmetric() ? arrivedDist[j][i] : metric.d(point, slotPoint[arrivedSlot[j]]);
+      entries[j] = ((long)OnlineKMedian.sortableBits(d) << 32) | j;
+    }
+
+    Arrays.sort(entries);
+
+    // the first position that changes
+    int first = n;
+
+    if (removals.length > 0) {
+      first = removals[0];
+    }
+
+    if (entries.length > 0) {
+      int j = (int)entries[0];
+      first = Math.min(first, position(row, rowDist, n, OnlineKMedian.unpackDist(entries[0]), slotKey[arrivedSlot[j]], oldKey));
+    }
+
+    // rename the points that moved before the first change, the others are
+    // renamed as the tail is copied back
+    for (int from : moved) {
+      int j = find(row, rowDist, n, metric.d(point, oldPoint[from]), from);
+      if (j < first) row[j] = moves[from];
+    }
+
+    // merge the tail with the points that arrived, dropping the points that left
+    int length = n - first;
+
+    System.arraycopy(row, first, tail, 0, length);
+    System.arraycopy(rowDist, first, tailD, 0, length);
+
+    int w = first;
+    int e = 0;
+    int x = 0;
+
+    for (int j = 0; j < length; j++) {
+
+      if (x < removals.length && removals[x] == first + j) {
+        x++;
+        continue;
+      }
+
+      while (e < entries.length && before(entries[e], arrivedSlot, tailD[j], oldKey[tail[j]])) {
+        row[w] = arrivedSlot[(int)entries[e]];
+        rowDist[w++] = OnlineKMedian.unpackDist(entries[e++]);
+      }
+
+      row[w] = moves[tail[j]];
+      rowDist[w++] = tailD[j];
+    }
+
+    while (e < entries.length) {
+      row[w] = arrivedSlot[(int)entries[e]];
+      rowDist[w++] = OnlineKMedian.unpackDist(entries[e++]);
+    }
+
+    // the prefix sums also change from the first point whose weight changed.
+    // finding each of them costs a distance, past a few it is cheaper to
+    // recompute the whole row
+    int from = first;
+
+    if (reweighted.length*4 > m) {
+      from = 0;
+    }
+    else {
+      for (int c : reweighted) {
+        from = Math.min(from, find(row, rowDist, m, metric.d(point, slotPoint[c]), c));
+      }
+    }
+
+    prefixSums(i, from, m);
+  }
+
+  // whether the entry of a point that arrived comes before the point with
+  // distance d and key key
+  private boolean before(long entry, int[] arrivedSlot, float d, int key) {
+
+    float ed = OnlineKMedian.unpackDist(entry);
+
+    return ed < d || (ed == d && slotKey[arrivedSlot[(int)entry]] < key);
+  }
+
+  // the position of slot in the first length points of row, which is at
+  // distance d. points at the same distance are searched one by one
+  private static int find(int[] row, float[] rowDist, int length, float d, int slot) {
+
+    int j = lowerBound(rowDist, length, d);
+
+    for (; j < length && rowDist[j] == d; j++) {
+      if (row[j] == slot) return j;
+    }
+
+    // the distance was not computed the same way, so look everywhere
+    for (j = 0; j < length; j++) {
+      if (row[j] == slot) return j;
+    }
+
+    return length;
+  }
+
+  // the number of points of row that come before a point at distance d with
+  // key key, where keys gives the keys of the slots in row
+  private static int position(int[] row, float[] rowDist, int length, float d, int key, int[] keys) {
+
+    int j = lowerBound(rowDist, length, d);
+
+    while (j < length && rowDist[j] == d && keys[row[j]] < key) {
+      j++;
+    }
+
+    return j;
+  }
+
+  // the first position in the first length entries of dist that is not below d
+  private static int lowerBound(float[] dist, int length, float d) {
+
+    int lo = 0;
+    int hi = length;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (dist[mid] < d) lo = mid + 1;
+      else hi = mid;
+    }
+
+    return lo;
+  }
+
+  // recompute the prefix sums of row i from position from, and the furthest distance
+  private void prefixSums(int i, int from, int m) {
+
+    int[] row = sortedPointsArr[i];
+    float[] rowDist = sortedPointsDistArr[i];
+
+    float[] aux1 = ballValueAux1[i];
+    float[] aux2 = ballValueAux2[i];
+
+    if (m == 0) return;
+
+    if (from == 0) {
+      aux1[0] = slotWeight[row[0]];
+      aux2[0] = rowDist[0]*slotWeight[row[0]];
+      from = 1;
+    }
+
+    for (int j = from; j < m; j++) {
+      aux1[j] = aux1[j-1] + slotWeight[row[j]];
+      aux2[j] = aux2[j-1] + rowDist[j]*slotWeight[row[j]];
+    }
+
+    furthestDist[i] = rowDist[m-1];
+  }
+
+  // hand the rows of the slots that stayed to their new slots, and the rows of
+  // the slots that were left to the slots of the points that arrived
+  private void moveRows(ArrayList<Integer> left, int[] arrivedSlot, int m) {
+
+    int[][] rows = new int[capacity][];
+    float[][] dist = new float[capacity][];
+    float[][] aux1 = new float[capacity][];
+    float[][] aux2 = new float[capacity][];
+
+    // the slots whose rows are not used any more, the slots from n on only
+    // hold rows that were left before
+    ArrayDeque<Integer> spare = new ArrayDeque<Integer>(left);
+
+    for (int s = 0; s < n; s++) {
+      if (moves[s] >= 0) {
+        rows[moves[s]] = sortedPointsArr[s];
+        dist[moves[s]] = sortedPointsDistArr[s];
+        aux1[moves[s]] = ballValueAux1[s];
+        aux2[moves[s]] = ballValueAux2[s];
+      }
+    }
+
+    for (int s = n; s < capacity; s++) {
+      if (sortedPointsArr[s] != null) spare.add(s);
+    }
+
+    for (int slot : arrivedSlot) {
+
+      Integer s = spare.poll();
+
+      if (s == null) {
+        rows[slot] = new int[capacity];
+        dist[slot] = new float[capacity];
+        aux1[slot] = new float[capacity];
+        aux2[slot] = new float[capacity];
+      }
+      else {
+        rows[slot] = sortedPointsArr[s];
+        dist[slot] = sortedPointsDistArr[s];
+        aux1[slot] = ballValueAux1[s];
+        aux2[slot] = ballValueAux2[s];
+      }
+    }
+
+    // keep the rows left over for later
+    for (int slot = m; slot < capacity && !spare.isEmpty(); slot++) {
+
+      int s = spare.poll();
+
+      rows[slot] = sortedPointsArr[s];
+      dist[slot] = sortedPointsDistArr[s];
+      aux1[slot] = ballValueAux1[s];
+      aux2[slot] = ballValueAux2[s];
+    }
+
+    sortedPointsArr = rows;
+    sortedPointsDistArr = dist;
+    ballValueAux1 = aux1;
+    ballValueAux2 = aux2;
+  }
+
+  // make room for m points and a quarter more, copying the rows over
+  private void grow(int m) {
+
+    capacity = m + m/4 + 16;
+
+    slotKey = (slotKey == null) ? new int[capacity] : Arrays.copyOf(slotKey, capacity);
+    slotPoint = (slotPoint == null) ? new float[capacity][] : Arrays.copyOf(slotPoint, capacity);
+    slotWeight = (slotWeight == null) ? new float[capacity] : Arrays.copyOf(slotWeight, capacity);
+
+    int[][] rows = new int[capacity][];
+    float[][] dist = new float[capacity][];
+    float[][] aux1 = new float[capacity][];
+    float[][] aux2 = new float[capacity][];
+
+    for (int s = 0; s < n; s++) {
+      rows[s] = Arrays.copyOf(sortedPointsArr[s], capacity);
+      dist[s] = Arrays.copyOf(sortedPointsDistArr[s], capacity);
+      aux1[s] = Arrays.copyOf(ballValueAux1[s], capacity);
+      aux2[s] = Arrays.copyOf(ballValueAux2[s], capacity);
+    }
+
+    sortedPointsArr = rows;
+    sortedPointsDistArr = dist;
+    ballValueAux1 = aux1;
+    ballValueAux2 = aux2;
+
+    furthestDist = (furthestDist == null) ? new float[capacity] : Arrays.copyOf(furthestDist, capacity);
+
+    moves = new int[capacity];
+
+    tailSlots = new int[0][];
+    tailDist = new float[0][];
+  }
+
+  private static int[] toArray(ArrayList<Integer> list) {
+
+    int[] arr = new int[list.size()];
+
+    for (int i = 0; i < arr.length; i++) {
+      arr[i] = list.get(i);
+    }
+
+    return arr;
+  }
+}
@@ -1,4 +1,5 @@
-// simple pair class
+// simple pair class, used by OnlineKMedian for a ball given by the index of its
+// center and its radius
 class Pair implements Comparable<Pair> {
 
   // stores and integer and a float
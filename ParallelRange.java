@@ -0,0 +1,63 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// runs a loop over [0, n) on the common fork join pool, in chunks of a fixed
+// size so that the chunk boundaries (and anything seeded per chunk) do not
+// depend on how the work gets scheduled
+class ParallelRange extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+
+  // the body of the loop, called once for each chunk [from, to)
+  interface Body {
+    void run(int chunk, int from, int to);
+  }
+
+  private Body body;
+
+  // the number of indices and the size of each chunk
+  private int n;
+  private int grain;
+
+  // the chunks handled by this task
+  private int first;
+  private int last;
+
+  private ParallelRange(Body body, int n, int grain, int first, int last) {
+    this.body = body;
+    this.n = n;
+    this.grain = grain;
+    this.first = first;
+    this.last = last;
+  }
+
+  // returns the number of chunks [0, n) is split into
+  public static int chunks(int n, int grain) {
+    return (n + grain - 1)/grain;
+  }
+
+  // runs body over [0, n), in parallel if there is more than one chunk
+  public static void run(int n, int grain, Body body) {
+
+    int chunks = chunks(n, grain);
+
+    if (chunks <= 1) {
+      if (n > 0) body.run(0, 0, n);
+      return;
+    }
+
+    ForkJoinPool.commonPool().invoke(new ParallelRange(body, n, grain, 0, chunks));
+  }
+
+  protected void compute() {
+
+    if (last - first == 1) {
+      body.run(first, first*grain, Math.min(n, (first + 1)*grain));
+      return;
+    }
+
+    int mid = (first + last) >>> 1;
+
+    invokeAll(new ParallelRange(body, n, grain, first, mid), new ParallelRange(body, n, grain, mid, last));
+  }
+}
@@ -46,8 +46,13 @@ public class Test {
     // the metric to be used
     Metric metric = new LpNorm(2, 1.0f/n);
 
+    // seed of every random choice, so runs can be repeated
+    long seed = 1;
+
+    SplittableRandom rng = new SplittableRandom(seed);
+
     // create update stream
-    SlidingWindow updateStream = new SlidingWindow(n, windowLength, "../data/" + dataset, true);
+    SlidingWindow updateStream = new SlidingWindow(n, windowLength, "../data/" + dataset, true, rng.split());
 
     float beta = 0.5f;
     float epsilon = 0.2f;
@@ -55,12 +60,12 @@ public class Test {
     DynamicAlgorithm[] dynamicAlgorithms = new DynamicAlgorithm[2];
 
     // dynamicAlgorithms[0] = new DynamicMP(k, metric, 250, beta, epsilon);
-    dynamicAlgorithms[0] = new DynamicMP(k, metric, 500, beta, epsilon);
+    dynamicAlgorithms[0] = new DynamicMP(k, metric, 500, beta, epsilon, rng.split());
     // dynamicAlgorithms[0] = new DynamicMP(k, metric, 1000, beta, epsilon);
 
     // dynamicAlgorithms[3] = new HenzingerTree(k, metric, 250);
     // dynamicAlgorithms[4] = new HenzingerTree(k, metric, 500);
-    dynamicAlgorithms[1] = new HenzingerTree(k, metric, 1000);
+    dynamicAlgorithms[1] = new HenzingerTree(k, metric, 1000, CoresetBFL.Approximation.FULL, rng.split());
 
     //runTests(updateStream, dynamicAlgorithms, metric, dataset, queryCount, "results/");
 
@@ -75,20 +80,20 @@ public class Test {
     float[] alphaValues_j = { 250, 500, 1000 };
     int[] mValues_j = { 250, 500, 1000 };
 
-    runBatchTests(3000, 2000, 100, kValues_j, alphaValues_j, mValues_j, metric, "justification (data)/", false);
+    runBatchTests(3000, 2000, 100, kValues_j, alphaValues_j, mValues_j, metric, "justification (data)/", false, seed);
 
     // experiments
     int[] kValues_e = { 10, 50, 100 };
     float[] alphaValues_e = { 500 };
     int[] mValues_e = { 1000 };
 
-    runBatchTests(10000, 2000, 100, kValues_e, alphaValues_e, mValues_e, metric, "experiments (data)/", false);
+    runBatchTests(10000, 2000, 100, kValues_e, alphaValues_e, mValues_e, metric, "experiments (data)/", false, seed);
 
     // justification_random
-    runBatchTests(3000, 2000, 100, kValues_j, alphaValues_j, mValues_j, metric, "justification_random (data)/", true);
+    runBatchTests(3000, 2000, 100, kValues_j, alphaValues_j, mValues_j, metric, "justification_random (data)/", true, seed);
 
     // experiments_random
-    runBatchTests(10000, 2000, 100, kValues_e, alphaValues_e, mValues_e, metric, "experiments_random (data)/", true);
+    runBatchTests(10000, 2000, 100, kValues_e, alphaValues_e, mValues_e, metric, "experiments_random (data)/", true, seed);
   }
 
   // run tests on many algorithmss
@@ -192,7 +197,7 @@ public class Test {
   }
 
   // run the complete tests
-  public static void runBatchTests(int n, int windowLength, int queryCount, int[] kValues, float[] alphaValues, int[] mValues, Metric metric, String dir, boolean randomOrder) throws IOException {
+  public static void runBatchTests(int n, int windowLength, int queryCount, int[] kValues, float[] alphaValues, int[] mValues, Metric metric, String dir, boolean randomOrder, long seed) throws IOException {
 
     float beta = 0.5f;
     float epsilon = 0.2f;
@@ -203,17 +208,20 @@ public class Test {
 
       for (String dataset : datasets) {
 
+        // every run of the same configuration makes the same random choices
+        SplittableRandom rng = new SplittableRandom(seed);
+
         DynamicAlgorithm[] dynamicAlgorithms = new DynamicAlgorithm[alphaValues.length + mValues.length];
 
         for (int i = 0; i < alphaValues.length; i++) {
-          dynamicAlgorithms[i] = new DynamicMP(k, metric, alphaValues[i], beta, epsilon);
+          dynamicAlgorithms[i] = new DynamicMP(k, metric, alphaValues[i], beta, epsilon, rng.split());
         }
 
         for (int i = 0; i < mValues.length; i++) {
-          dynamicAlgorithms[i + alphaValues.length] = new HenzingerTree(k, metric, mValues[i]);
+          dynamicAlgorithms[i + alphaValues.length] = new HenzingerTree(k, metric, mValues[i], CoresetBFL.Approximation.FULL, rng.split());
         }
 
-        SlidingWindow updateStream = new SlidingWindow(n, windowLength, "../data/" + dataset, randomOrder);
+        SlidingWindow updateStream = new SlidingWindow(n, windowLength, "../data/" + dataset, randomOrder, rng.split());
 
         System.out.println("----------------");
         System.out.println("Dataset: " + dataset);
@@ -232,18 +240,20 @@ public class Test {
     Integer[] pointsArr = points.keySet().toArray(new Integer[0]);
     Integer[] solutionArr = solution.keySet().toArray(new Integer[0]);
 
-    float cost = 0;
+    // look up the centers once
+    float[][] centers = new float[solutionArr.length][];
 
-    for (int i = 0; i < pointsArr.length; i++) {
-      float dist = Float.POSITIVE_INFINITY;
+    for (int j = 0; j < solutionArr.length; j++) {
+      centers[j] = points.get(solutionArr[j]);
+    }
 
-      for (int j = 0; j < solutionArr.length; j++) {
+    float[] dist = new float[1];
 
-        float d = metric.d(points.get(pointsArr[i]), points.get(solutionArr[j]));
-        if (d <= dist) dist = d;
-      }
+    float cost = 0;
 
-      cost += dist;
+    for (int i = 0; i < pointsArr.length; i++) {
+      metric.nearest(points.get(pointsArr[i]), centers, dist, 0);
+      cost += dist[0];
     }
 
     return cost;
@@ -35,25 +35,33 @@ class SlidingWindow extends UpdateStreamGenerator {
   // permutation of points
   private int[] perm;
 
-  SlidingWindow(int n, int windowLength, String path, boolean randomOrder, int offset) {
+  SlidingWindow(int n, int windowLength, String path, boolean randomOrder, int offset, SplittableRandom rng) {
 
     this.n = n;
     this.windowLength = windowLength;
 
     // generate the permutation of points
-    generatePermutation(randomOrder);
+    generatePermutation(randomOrder, rng);
 
     // load the data
     this.loadData(path, offset);
   }
 
+  SlidingWindow(int n, int windowLength, String path, boolean randomOrder, int offset) {
+    this(n, windowLength, path, randomOrder, offset, new SplittableRandom());
+  }
+
+  SlidingWindow(int n, int windowLength, String path, boolean randomOrder, SplittableRandom rng) {
+    this(n, windowLength, path, randomOrder, 0, rng);
+  }
+
   SlidingWindow(int n, int windowLength, String path, boolean randomOrder) {
 
     this.n = n;
     this.windowLength = windowLength;
 
     // generate the permutation of points
-    generatePermutation(randomOrder);
+    generatePermutation(randomOrder, new SplittableRandom());
 
     // load the data
     this.loadData(path, 0);
@@ -65,7 +73,7 @@ class SlidingWindow extends UpdateStreamGenerator {
     this.windowLength = windowLength;
 
     // generate the permutation of points
-    generatePermutation(false);
+    generatePermutation(false, null);
 
     // load the data
     this.loadData(path, 0);
@@ -141,28 +149,23 @@ class SlidingWindow extends UpdateStreamGenerator {
     scanner.close();
   }
 
-  // generate a permutation of the points u.a.r
-  private void generatePermutation(boolean randomOrder) {
+  // generate a permutation of the points u.a.r using rng
+  private void generatePermutation(boolean randomOrder, SplittableRandom rng) {
 
     // create new array and place interegers 0 to n-1
-    Integer[] permArray = new Integer[n];
+    this.perm = new int[n];
     for (int i = 0; i < n; i++) {
-      permArray[i] = i;
+      perm[i] = i;
     }
 
-    // shuffle the contents of the array
+    // shuffle the contents of the array with Fisher-Yates
     if (randomOrder) {
-      List<Integer> permList = Arrays.asList(permArray);
-
-  		Collections.shuffle(permList);
-
-      permList.toArray(permArray);
-    }
-
-    // place into perm
-    this.perm = new int[n];
-    for (int i = 0; i < n; i++) {
-      perm[i] = permArray[i];
+      for (int i = n - 1; i > 0; i--) {
+        int j = rng.nextInt(i + 1);
+        int temp = perm[i];
+        perm[i] = perm[j];
+        perm[j] = temp;
+      }
     }
   }
 